@@ -1,6 +1,15 @@
 import java.io.*;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
 public class Bayespam
@@ -10,21 +19,218 @@ public class Bayespam
     {
         NORMAL, SPAM
     }
+    
+    // Why the scoring of a message stopped before its end
+    static enum EarlyStop
+    {
+        MARGIN, TOKENS, BYTES
+    }
 
-    // This a class with two counters (for regular and for spam)
-    static class Multiple_Counter
+    // Adds every word it receives to a vocabulary with the given message type
+    static class WordCounter implements Tokenizer.TokenSink
     {
-        int counter_spam    = 0;
-        int counter_regular = 0;
+        private final MessageType type;
+        private final TokenDictionary counts;
+        int words = 0;	///The number of words that were added
 
-        // Increase one of the counters by one
-        public void incrementCounter(MessageType type)
+        WordCounter(MessageType type, TokenDictionary counts)
         {
-            if ( type == MessageType.NORMAL ){
-                ++counter_regular;
-            } else {
-                ++counter_spam;
+            this.type = type;
+            this.counts = counts;
+        }
+
+        public void token(char[] chars, int length)
+        {
+            addWord(chars, length, type, counts);
+            ++words;
+        }
+
+        public void endOfLine()
+        {
+        }
+    }
+
+    // Collects the trained words of a message that is to be taken out of the vocabulary again, remove only takes them
+    // out once it is sure the message was trained with the given type
+    static class WordRemover implements Tokenizer.TokenSink
+    {
+        private final MessageType type;
+        private int[] ids = new int[256];
+        int words = 0;	///The number of trained words in the message
+
+        WordRemover(MessageType type)
+        {
+            this.type = type;
+        }
+
+        public void token(char[] chars, int length)
+        {
+            int id = vocab.lookup(chars, length);
+            if ( id < 0 ){
+                return;                                 // never trained, so there is nothing to take out
+            }
+            if ( words == ids.length ){
+                ids = Arrays.copyOf(ids, 2 * words);
             }
+            ids[words++] = id;
+        }
+
+        public void endOfLine()
+        {
+        }
+
+        // Takes the words out of the counts of the type. When a word occurs more often in the message than it is
+        // counted for the type, the message was never trained with it: nothing is changed and false is returned.
+        boolean remove()
+        {
+            int[] sorted = Arrays.copyOf(ids, words);
+            Arrays.sort(sorted);
+            for (int i = 0, j; i < words; i = j)
+            {
+                for (j = i + 1; j < words && sorted[j] == sorted[i]; ++j){
+                    // count the occurrences of this word
+                }
+                if ( count(sorted[i]) < j - i ){
+                    return false;
+                }
+            }
+            for (int i = 0; i < words; ++i)
+            {
+                if ( type == MessageType.NORMAL ){
+                    vocab.addCount(ids[i], -1, 0);
+                } else {
+                    vocab.addCount(ids[i], 0, -1);
+                }
+            }
+            return true;
+        }
+
+        private int count(int id)
+        {
+            return type == MessageType.NORMAL ? vocab.regularCount(id) : vocab.spamCount(id);
+        }
+    }
+
+    // Adds the class conditional likelihoods of the words it receives to the posteriors of a message
+    static class MessageScore implements Tokenizer.TokenSink
+    {
+        ///Posteri of regular and spam are initialized with the probablities
+        double posteriRegular = probRegular;
+        double posteriSpam = probSpam;
+        int tokens = 0;
+        EarlyStop stopped = null;	///Null when the whole message was scored
+
+        public void token(char[] chars, int length)
+        {
+            if ( stopped != null ){
+                return;                                 // a token the tokenizer had already started on
+            }
+            score(chars, length);
+            ++tokens;
+            
+            ///Early termination: the rest of the message is skipped once the margin or the token budget is reached
+            if ( maxTokens > 0 && tokens >= maxTokens ){
+                stop(EarlyStop.TOKENS);
+            } else if ( margin > 0 && Math.abs(posteriRegular - posteriSpam) >= margin ){
+                stop(EarlyStop.MARGIN);
+            }
+        }
+
+        private void stop(EarlyStop reason)
+        {
+            stopped = reason;
+            readers.get().stop();
+        }
+
+        private void score(char[] chars, int length)
+        {
+            if ( features != null ){
+                int bucket = features.bucket(chars, length);
+                if ( features.regularCount(bucket) != 0 || features.spamCount(bucket) != 0 ){
+                    posteriRegular += bucketCCL[2 * bucket];
+                    posteriSpam += bucketCCL[2 * bucket + 1];
+                }
+                return;
+            }
+            if ( offHeap != null ){
+                int slot = offHeap.find(chars, length);
+                if ( slot >= 0 ){
+                    posteriRegular += offHeap.regular(slot);
+                    posteriSpam += offHeap.spam(slot);
+                }
+                return;
+            }
+            if ( scoring != null ){
+                int slot = scoring.find(chars, length);
+                if ( slot >= 0 ){
+                    posteriRegular += scoring.regular(slot);
+                    posteriSpam += scoring.spam(slot);
+                }
+                return;
+            }
+            
+            ///The model changed since the table was frozen, use the current counts
+            int id = vocab.lookup(chars, length);
+            if ( id >= 0 && (vocab.regularCount(id) != 0 || vocab.spamCount(id) != 0) ){
+                if ( cclGeneration[id] != generation ){
+                    calcWordCCL(id);
+                }
+                posteriRegular += ccl[2 * id];
+                posteriSpam += ccl[2 * id + 1];
+            }
+        }
+
+        public void endOfLine()
+        {
+        }
+    }
+
+    // Reads a range of message files into its own local dictionary, splitting the range over workers when it is large.
+    // The dictionaries of both halves are merged when they are joined, so the workers never share a table while reading.
+    static class ReadTask extends RecursiveTask<TokenDictionary>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final File[] messages;
+        private final int from, to;
+        private final MessageType type;
+
+        ReadTask(File[] messages, int from, int to, MessageType type)
+        {
+            this.messages = messages;
+            this.from = from;
+            this.to = to;
+            this.type = type;
+        }
+
+        protected TokenDictionary compute()
+        {
+            if ( to - from <= filesPerTask ){
+                TokenDictionary counts = new TokenDictionary();
+                WordCounter counter = new WordCounter(type, counts);
+                try {
+                    for (int i = from; i < to; ++i){
+                        trainMessage(messages[i], counter);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return counts;
+            }
+
+            int middle = (from + to) >>> 1;
+            ReadTask left = new ReadTask(messages, from, middle, type);
+            left.fork();
+            TokenDictionary right = new ReadTask(messages, middle, to, type).compute();
+            TokenDictionary joined = left.join();
+
+            ///Merge the smaller dictionary into the larger one
+            if ( joined.size() < right.size() ){
+                right.merge(joined);
+                return right;
+            }
+            joined.merge(right);
+            return joined;
         }
     }
 
@@ -33,77 +239,123 @@ public class Bayespam
     private static File[] listing_spam = new File[0];
     private static File[] listing_test = new File[0];
     
-    // A hash table for the vocabulary (word searching is very fast in a hash table)
-    private static Hashtable <String, Multiple_Counter> vocab = new Hashtable <String, Multiple_Counter> ();
-    private static Hashtable <String, Double> cclRegular = new Hashtable <String, Double> ();
-    private static Hashtable <String, Double> cclSpam = new Hashtable <String, Double> ();
+    // The vocabulary gives every word an ID, the counts and the class conditional likelihoods are arrays indexed by that ID
+    private static TokenDictionary vocab = new TokenDictionary();
+    private static double[] ccl = new double[0];	///CCL regular at 2 * ID, CCL spam at 2 * ID + 1
+    
+    // The words and CCLs frozen into a perfect hash index for classification, built by calcCCL. It is dropped (null) when a
+    // message is learned or forgotten, from then on a CCL is only recalculated when a word is scored: cclGeneration
+    // holds the generation every CCL was calculated in, and every change of the word totals starts a new generation.
+    private static PerfectHashIndex scoring = new PerfectHashIndex(vocab, ccl);
+    private static int[] cclGeneration = new int[0];
+    
+    // With -offHeap the model is only kept as this table outside the heap once it is trained or loaded (null: on-heap)
+    private static OffHeapScoringTable offHeap = null;
+    private static boolean offHeapModel = false;
+    private static int generation = 0;
+    
+    // With -hashBuckets N the words are counted in N hashed buckets instead of the vocabulary (null: exact words)
+    private static HashedFeatures features = null;
+    private static double[] bucketCCL = new double[0];	///CCL regular at 2 * bucket, CCL spam at 2 * bucket + 1
+    private static int hashBuckets = 0;
+    
+    // With -minCount N a word only enters the vocabulary once it occurred N times, until then it is only counted in a
+    // count-min sketch per message type (null: every word enters the vocabulary)
+    private static CountMinSketch admissionRegular = null;
+    private static CountMinSketch admissionSpam = null;
+    private static int minCount = 0;
+    private static int sketchWidth = 1 << 16;	///Counters per row of the sketches
 
     ///These are our constant values
-    private static final int sizeOfRegularFolder = 28;	///We know this is the regular/spam folder based on size(this is the max size of regular)
-    private static final double tuningParameter = 0.02; ///We found lower value's are best at 0.02 is the turning point 
+    private static double tuningParameter = 0.02; ///We found lower value's are best at 0.02 is the turning point (CrossValidation measures others, -tuning X sets one)
+    private static final int shortWordSize = 3;	///Words with at most this many letters are left out
+    private static final int filesPerTask = 16;	///A read task with at most this many files is not split any further
+    
+    private static int trainingThreads = 1;	///Number of threads reading the training messages, 1 reads them one after another
+    private static int workers = 1;	///Number of processes reading the training messages, each one a shard of them
+    private static File modelFile = null;	///The trained model is saved to this file when it is set
+    private static File cacheFile = null;	///The tokens of the messages are kept in this file when it is set
+    private static TokenCache cache = null;
+    
+    // The slot in the scoring index of every word of a token cache by word ID + 1, for the ScoringKernel. It belongs to
+    // slotsCache and slotsIndex, is rebuilt when either is replaced and extended when the cache gets new words.
+    private static TokenCache slotsCache = null;
+    private static PerfectHashIndex slotsIndex = null;
+    private static int[] cacheSlots = new int[0];
+    private static int slotsMapped = 0;	///Words of the cache that have a slot in cacheSlots
+    
+    // Every thread that reads messages gets its own message reader (and tokenizer)
+    private static final ThreadLocal<MessageReader> readers = ThreadLocal.withInitial(() -> new MessageReader(newTokenizer()));
     
     private static double probRegular;
 	private static double probSpam;
     private static int totalRegularWords = 0;
 	private static int totalSpamWords = 0;
+	private static int regularMessages = 0;
+	private static int spamMessages = 0;
     
 	
-	private static int truePositive = 0;	///Regular and classified regular
-	private static int falsePositive = 0;	///Spam and classified regular
-	private static int trueNegative = 0;	///Spam and classified spam
-	private static int falseNegative = 0;	///Regular and classified spam
+	private static final SpamCorpus.ConfusionMatrix confusion = new SpamCorpus.ConfusionMatrix();
+	
+	///Early termination, 0 is no limit: stop scoring a message after maxTokens words, after maxBytes bytes or once the
+	///log odds are margin away from 0, and count how often each of those happened
+	private static int maxTokens = 0;
+	private static long maxBytes = 0;
+	private static double margin = 0;
+	private static final LongAdder stoppedByMargin = new LongAdder();
+	private static final LongAdder stoppedByTokens = new LongAdder();
+	private static final LongAdder stoppedByBytes = new LongAdder();
+	
+	private static ResultCache results = null;	///The log odds of recently scored messages, only with -resultCache
+	private static SpamMetrics metrics = null;	///Timing and counters of the run, only with -metrics
+	private static int metricsInterval = 0;	///Seconds between two metrics log lines, 0 only prints the summary at the end
+	
+	private static String evalThreads = null;	///Threads classifying the test messages, a number or 'virtual' (null: only the main thread)
     
-    // Add a word to the vocabulary
-    private static void addWord(String word, MessageType type)
+    // Add the word in the first length chars to the given vocabulary
+    private static void addWord(char[] chars, int length, MessageType type, TokenDictionary counts)
     {
-        Multiple_Counter counter = new Multiple_Counter();
-
-        if ( vocab.containsKey(word) ){                  // if word exists already in the vocabulary..
-            counter = vocab.get(word);                  // get the counter from the hashtable
+        if ( features != null ){
+            features.add(chars, length, type == MessageType.NORMAL ? 1 : 0, type == MessageType.SPAM ? 1 : 0);
+            return;
         }
-        counter.incrementCounter(type);                 // increase the counter appropriately
+        
+        if ( admissionRegular != null && counts.lookup(chars, length) < 0 ){
+            ///Not admitted yet: count it in the sketch, it is admitted with every occurrence the sketches counted
+            (type == MessageType.NORMAL ? admissionRegular : admissionSpam).add(chars, length);
+            int regular = admissionRegular.estimate(chars, length);
+            int spam = admissionSpam.estimate(chars, length);
+            if ( regular + spam >= minCount ){
+                counts.addCount(counts.add(chars, length), regular, spam);
+            }
+            return;
+        }
+        
+        int id = counts.add(chars, length);             // the ID of the word, new words start with zero counts
 
-        vocab.put(word, counter);                       // put the word with its counter into the hashtable
+        if ( type == MessageType.NORMAL ){              // increase the counter appropriately
+            counts.addCount(id, 1, 0);
+        } else {
+            counts.addCount(id, 0, 1);
+        }
     }
 
     // List the regular and spam messages
     private static void listDirs(File dir_location)
     {
-        // List all files in the directory passed
-        File[] dir_listing = dir_location.listFiles();
-
-        // Check that there are 2 subdirectories
-        if ( dir_listing.length != 2 )
-        {
-            System.out.println( "- Error: specified directory does not contain two subdirectories.\n" );
-            Runtime.getRuntime().exit(0);
-        }
-
-        if(dir_listing[0].listFiles().length>sizeOfRegularFolder){
-        	listing_regular = dir_listing[0].listFiles();
-        	listing_spam    = dir_listing[1].listFiles();
-        }else{
-        	listing_spam = dir_listing[0].listFiles();
-        	listing_regular    = dir_listing[1].listFiles();
-        }
-       
+        SpamCorpus corpus = SpamCorpus.training(dir_location);
+        listing_regular = corpus.regular;
+        listing_spam = corpus.spam;
     }
 
     
     // Print the current content of the vocabulary (debug)
     private static void printVocab()
     {
-        Multiple_Counter counter = new Multiple_Counter();
-
-        for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
+        for (int id = 0; id < vocab.size(); ++id)
         {   
-            String word;
-            
-            word = e.nextElement();
-            counter  = vocab.get(word);
-            
-            System.out.println( word + " | in regular: " + counter.counter_regular + 
-                                " in spam: "    + counter.counter_spam);
+            System.out.println( vocab.word(id) + " | in regular: " + vocab.regularCount(id) + 
+                                " in spam: "    + vocab.spamCount(id));
         }
     }
 
@@ -120,28 +372,33 @@ public class Bayespam
             messages = listing_spam;
         }
         
+        if ( trainingThreads > 1 && features == null && admissionRegular == null ){
+            ///Every worker counts into its own map, only the merged result goes into the vocabulary
+            ForkJoinPool pool = new ForkJoinPool(trainingThreads);
+            try {
+                vocab.merge(pool.invoke(new ReadTask(messages, 0, messages.length, type)));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+            return;
+        }
+        
+        WordCounter counter = new WordCounter(type, vocab);
         for (int i = 0; i < messages.length; ++i)
         {
-            FileInputStream i_s = new FileInputStream( messages[i] );
-            BufferedReader in = new BufferedReader(new InputStreamReader(i_s));
-            String line;
-            String word;
-            
-            while ((line = in.readLine()) != null)                      // read a line
-            {
-
-            	line = cleanLine(line);
-            	
-                StringTokenizer st = new StringTokenizer(line);         // parse it into words
-       
-            	
-                while (st.hasMoreTokens())                  // while there are stille words left..
-                {
-                    addWord(st.nextToken(), type);                  // add them to the vocabulary
-                }
-            }
-
-            in.close();
+            trainMessage(messages[i], counter);
+        }
+    }
+    
+    ///Reads one training message into the counter, and counts its tokens and bytes when there are metrics
+    private static void trainMessage(File f, WordCounter counter) throws IOException
+    {
+        int words = counter.words;
+        readMessage(f, counter);
+        if ( metrics != null ){
+            metrics.trained(counter.words - words, f.length());
         }
     }
     
@@ -149,178 +406,432 @@ public class Bayespam
     /// Print the current content of the spam CCL (debug)
     private static void printCCLSpam()
     {
-        Double counter;
-
-        for (Enumeration<String> e = cclSpam.keys() ; e.hasMoreElements() ;)
+        for (int id = 0; id < ccl.length / 2; ++id)
         {   
-            String word;
-            
-            word = e.nextElement();
-            counter  = cclSpam.get(word);
-            
-            System.out.println( word + " | CCL for spam : " + counter );
+            System.out.println( vocab.word(id) + " | CCL for spam : " + ccl[2 * id + 1] );
         }
     }
     
 	/// Print the current content of the regular CCL (debug)
     private static void printCCLRegular()
     {
-        Double counter;
-
-        for (Enumeration<String> e = cclRegular.keys() ; e.hasMoreElements() ;)
+        for (int id = 0; id < ccl.length / 2; ++id)
         {   
-            String word;
-            
-            word = e.nextElement();
-            counter  = cclRegular.get(word);
-            
-            System.out.println( word + " | CCL for Regular : " + counter );
+            System.out.println( vocab.word(id) + " | CCL for Regular : " + ccl[2 * id] );
+        }
+    }
+    
+    ///Reads a message with the reader of this thread, or from the token cache when there is one
+    private static void readMessage(File f, Tokenizer.TokenSink sink) throws IOException
+    {
+        if ( cache != null ){
+            cache.read(f, readers.get(), sink);
+            return;
         }
+        readers.get().read(f, sink);
     }
     
     ///New methods below
-    private static String cleanLine(String line){
-    	///Below line removes all non alphabet characters, using regex
-    	line = " " + line.replaceAll("[^a-zA-Z\\s]", "") + " ";            	
-    	///Below line removes all words that are now smaller then 4, using regex
-    	line = line.replaceAll("(\\s+([a-zA-Z]{1,3}\\s+)+)+"," ");
-    	///Below line converts remaining string to lowercase
-    	line = line.toLowerCase();
-    	return line;
+    ///Only letters are kept, words smaller then 4 are removed and the rest is lowercased (what cleanLine did with regexes)
+    static Tokenizer newTokenizer(){
+    	return new Tokenizer(shortWordSize, false);
     }
     
     private static void calcPReg(int regular, int spam){
-    	int totalNr = regular + spam;
-    	probRegular = (double) regular/totalNr;
+    	probRegular = SpamCorpus.prior(regular, regular, spam);
     }
     
     private static void calcPSpam(int regular, int spam){
-    	int totalNr = regular + spam;
-    	probSpam = (double) spam/totalNr;
+    	probSpam = SpamCorpus.prior(spam, regular, spam);
     }
     
     private static void countAllWords(){
-    	 Multiple_Counter counter = new Multiple_Counter();
-    	 
-         for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
+         if ( features != null ){
+             for (int bucket = 0; bucket < features.buckets(); ++bucket)
+             {
+                 totalRegularWords += features.regularCount(bucket);
+                 totalSpamWords += features.spamCount(bucket);
+             }
+             return;
+         }
+         for (int id = 0; id < vocab.size(); ++id)
          {   
-             String word;
-             
-             word = e.nextElement();
-             counter  = vocab.get(word);
-             
-             totalRegularWords += counter.counter_regular;
-             totalSpamWords += counter.counter_spam;
+             totalRegularWords += vocab.regularCount(id);
+             totalSpamWords += vocab.spamCount(id);
          }
     }
     
-    private static void calcCCL(){
-    	Multiple_Counter counter = new Multiple_Counter();
-    	 int regular, spam;
-         Double cclRegularValue, cclSpamValue;
-    	 for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
+    static void calcCCL(){
+         if ( features != null ){
+             calcBucketCCL();
+             return;
+         }
+         ccl = new double[2 * vocab.size()];
+         cclGeneration = new int[vocab.size()];
+    	 for (int id = 0; id < vocab.size(); ++id)
          {   
-             String word;
-             
-             word = e.nextElement();
-             counter  = vocab.get(word);
-             
-             regular = counter.counter_regular;
-             spam = counter.counter_spam;
+             calcWordCCL(id);
+         }
+    	 scoring = new PerfectHashIndex(vocab, ccl);
+    	 if ( results != null ){
+    	     results.invalidate();
+    	 }
+    }
+    
+    ///The CCLs of every used bucket in the hashed feature mode, the same way as for the words
+    private static void calcBucketCCL(){
+         int regular, spam;
+         double cclRegularValue, cclSpamValue;
+         bucketCCL = new double[2 * features.buckets()];
+         for (int bucket = 0; bucket < features.buckets(); ++bucket)
+         {
+             regular = features.regularCount(bucket);
+             spam = features.spamCount(bucket);
+             if ( regular == 0 && spam == 0 ){
+                 continue;                              // never used, the words in it are scored as unseen words
+             }
              
              if(regular != 0){
             	cclRegularValue = (double) regular/totalRegularWords;
              }else{
-            	cclRegularValue = (double) tuningParameter/(totalRegularWords + totalSpamWords);
+            	cclRegularValue = tuningParameter/(totalRegularWords + totalSpamWords);
              }
              if(spam != 0){
             	 cclSpamValue = (double) spam/totalSpamWords;
              }else{
-            	 cclSpamValue = (double) tuningParameter/(totalRegularWords + totalSpamWords);
-             }	
-             
-             cclSpamValue = Math.log10(cclSpamValue);
-             cclRegularValue = Math.log10(cclRegularValue);
-             
-             cclRegular.put(word, cclRegularValue);
-             cclSpam.put(word, cclSpamValue);
+            	 cclSpamValue = tuningParameter/(totalRegularWords + totalSpamWords);
+             }
              
+             bucketCCL[2 * bucket] = Math.log10(cclRegularValue);
+             bucketCCL[2 * bucket + 1] = Math.log10(cclSpamValue);
          }
     }
     
-    ///Asks a file then classifies the message based on vocab, the type is to calculate the correct/incorrect classification rate.
-    private static void classifyMessage(File f, MessageType type) throws IOException{ 
-    	FileInputStream i_s = new FileInputStream(f);
-         BufferedReader in = new BufferedReader(new InputStreamReader(i_s));
-         String line;
-         String word;
-         MessageType tag;
+    ///Calculates the class conditional likelihoods of one word from its counts and the current totals
+    private static void calcWordCCL(int id){
+    	 int regular, spam;
+         double cclRegularValue, cclSpamValue;
          
-         ///Posteri of regular and spam are initialized with the probablities
-         double posteriRegular = probRegular;	
-         double posteriSpam = probSpam;
+         regular = vocab.regularCount(id);
+         spam = vocab.spamCount(id);
          
-         while ((line = in.readLine()) != null)                      // read a line
-         {
-
-         	line = cleanLine(line);
-         	
-             StringTokenizer st = new StringTokenizer(line);         // parse it into words
-         	
-             while (st.hasMoreTokens())                  // while there are still words left..
-             {
-            	word = st.nextToken();
-            	 if(cclRegular.get(word) != null){
-            		 posteriRegular += cclRegular.get(word); 
-            	 }
-            	 if(cclSpam.get(word) != null){
-            		 posteriSpam += cclSpam.get(word);
-            	 }
-             }
-         } 
-
-         if(posteriRegular > posteriSpam){
-        	 tag = MessageType.NORMAL;
-        	 if(type.equals(tag)){
-        		 truePositive++;
-        	 }else{
-        		 falsePositive++;
-        	 }
+         if(regular != 0){
+        	cclRegularValue = (double) regular/totalRegularWords;
          }else{
-        	 tag = MessageType.SPAM;
-        	 if(type.equals(tag)){
-        		 trueNegative++;
-        	 }else{
-        		 falseNegative++;
-        	 }
-         }	         
-         in.close();
+        	cclRegularValue = tuningParameter/(totalRegularWords + totalSpamWords);
+         }
+         if(spam != 0){
+        	 cclSpamValue = (double) spam/totalSpamWords;
+         }else{
+        	 cclSpamValue = tuningParameter/(totalRegularWords + totalSpamWords);
+         }	
+         
+         cclSpamValue = Math.log10(cclSpamValue);
+         cclRegularValue = Math.log10(cclRegularValue);
+         
+         ccl[2 * id] = cclRegularValue;
+         ccl[2 * id + 1] = cclSpamValue;
+         cclGeneration[id] = generation;
     }
     
+    ///Online training: adds one labeled message to the model. This costs time in the size of the message, not of the
+    ///vocabulary: the counts and totals are updated in place and the CCLs are only recalculated when they are used.
+    ///The model must not be classifying messages on other threads at the same time.
+    static void learnMessage(File f, MessageType type) throws IOException
+    {
+        checkOnlineTraining();
+        WordCounter counter = new WordCounter(type, vocab);
+        readMessage(f, counter);
+        changeModel(type, 1, counter.words);
+    }
     
-    /// List the regular and spam messages as one giant set of test messages to be classified
-    private static void listTest(File dir_location) throws IOException
+    static void learnMessage(ByteBuffer body, MessageType type) throws IOException
     {
-        // List all files in the directory passed
-        File[] dir_listing = dir_location.listFiles();
-
-        // Check that there are 2 subdirectories
-        if ( dir_listing.length != 2 )
-        {
-            System.out.println( "- Error: specified directory does not contain two subdirectories.\n" );
-            Runtime.getRuntime().exit(0);
+        checkOnlineTraining();
+        WordCounter counter = new WordCounter(type, vocab);
+        readers.get().read(body, counter);
+        changeModel(type, 1, counter.words);
+    }
+    
+    ///Online training: takes a message that was trained (or learned) with the given label out of the model again,
+    ///an IllegalArgumentException when it was not
+    static void forgetMessage(File f, MessageType type) throws IOException
+    {
+        checkOnlineTraining();
+        WordRemover remover = new WordRemover(type);
+        readMessage(f, remover);
+        forget(remover, type);
+    }
+    
+    static void forgetMessage(ByteBuffer body, MessageType type) throws IOException
+    {
+        checkOnlineTraining();
+        WordRemover remover = new WordRemover(type);
+        readers.get().read(body, remover);
+        forget(remover, type);
+    }
+    
+    ///Online training only keeps the exact word counts of an on-heap model up to date. The buckets of -hashBuckets and
+    ///their CCLs, the admission sketches of -minCount (whose words are only counted once admitted) and an -offHeap
+    ///table (which has no counts) would silently disagree with it, so it is refused for those models.
+    private static void checkOnlineTraining()
+    {
+        String mode = null;
+        if ( offHeap != null ){
+            mode = "-offHeap";
+        } else if ( features != null ){
+            mode = "-hashBuckets";
+        } else if ( admissionRegular != null ){
+            mode = "-minCount";
+        }
+        if ( mode != null ){
+            throw new IllegalStateException("learning and forgetting messages is not supported for a model with " + mode);
         }
+    }
+    
+    ///Forgetting a message that was not trained (or learned) with the type would make counts negative and every CCL
+    ///after that NaN, so it is refused and the model stays as it was
+    private static void forget(WordRemover remover, MessageType type)
+    {
+        int messages = type == MessageType.NORMAL ? regularMessages : spamMessages;
+        if ( messages == 0 || !remover.remove() ){
+            throw new IllegalArgumentException("the message was not learned as " + type);
+        }
+        changeModel(type, -1, -remover.words);
+    }
+    
+    private static void changeModel(MessageType type, int messages, int words)
+    {
+        if ( type == MessageType.NORMAL ){
+            regularMessages += messages;
+            totalRegularWords += words;
+        } else {
+            spamMessages += messages;
+            totalSpamWords += words;
+        }
+        calcPReg(regularMessages, spamMessages);
+        calcPSpam(regularMessages, spamMessages);
         
-        File[] regularListing; 	
-        File[] spamListing;	
-        if(dir_listing[0].listFiles().length<sizeOfRegularFolder){
-        	regularListing = dir_listing[0].listFiles();
-        	spamListing    = dir_listing[1].listFiles();
-        }else{
-        	regularListing = dir_listing[0].listFiles();
-        	spamListing    = dir_listing[1].listFiles();
+        ///New words need room for their CCLs, all other CCLs just become stale by starting a new generation
+        if ( vocab.size() > cclGeneration.length ){
+            int capacity = Math.max(vocab.size(), 2 * cclGeneration.length);
+            ccl = Arrays.copyOf(ccl, 2 * capacity);
+            cclGeneration = Arrays.copyOf(cclGeneration, capacity);
+        }
+        ++generation;
+        scoring = null;
+        if ( results != null ){
+            results.invalidate();
+        }
+    }
+    
+    ///The log odds (posteriRegular - posteriSpam) of a message in memory, it is classified regular when they are above 0
+    static double scoreMessage(ByteBuffer body) throws IOException
+    {
+        if ( results == null ){
+            MessageScore score = scoreBody(body);
+            return score.posteriRegular - score.posteriSpam;
+        }
+        long key = ResultCache.key(body, maxBytes);
+        ResultCache.Result cached = results.get(key);
+        if ( cached != null ){
+            return cached.logOdds;
+        }
+        MessageScore score = scoreBody(body);
+        results.put(key, score.posteriRegular - score.posteriSpam, score.stopped);
+        return score.posteriRegular - score.posteriSpam;
+    }
+    
+    ///Scores a message in memory within the byte budget, like scoreFile
+    private static MessageScore scoreBody(ByteBuffer body) throws IOException
+    {
+        MessageScore score = new MessageScore();
+        if ( maxBytes <= 0 || body.remaining() <= maxBytes ){
+            readers.get().read(body, score);
+            return score;
+        }
+        readers.get().read(body.duplicate().limit(body.position() + (int) maxBytes), score);
+        if ( score.stopped == null ){
+            score.stopped = EarlyStop.BYTES;
+        }
+        return score;
+    }
+    
+    ///The same log odds for a message file
+    static double scoreMessage(File f) throws IOException
+    {
+        MessageScore score = scoreFile(f);
+        return score.posteriRegular - score.posteriSpam;
+    }
+    
+    ///The log odds of a message that a token cache has tokenized to IDs, summed by the ScoringKernel (calcCCL first)
+    static double scoreTokens(int[] ids, TokenCache words)
+    {
+        double[] posteriors = { probRegular, probSpam };
+        scoring.sum(ids, ids.length, cacheSlots(words), posteriors);
+        return posteriors[0] - posteriors[1];
+    }
+    
+    ///The slots of the words of a token cache, see cacheSlots. The cache only adds words, so an array that was returned
+    ///stays valid for the IDs the cache gave out before.
+    private static synchronized int[] cacheSlots(TokenCache words)
+    {
+        if ( words != slotsCache || scoring != slotsIndex ){
+            slotsCache = words;
+            slotsIndex = scoring;
+            cacheSlots = new int[1024];
+            cacheSlots[0] = scoring.unknownSlot();	///The ends of lines
+            slotsMapped = 0;
         }
+        int n = words.words();
+        if ( n + 1 > cacheSlots.length ){
+            cacheSlots = Arrays.copyOf(cacheSlots, Math.max(n + 1, 2 * cacheSlots.length));
+        }
+        for (; slotsMapped < n; ++slotsMapped)
+        {
+            char[] word = words.word(slotsMapped).toCharArray();
+            int slot = scoring.find(word, word.length);
+            cacheSlots[slotsMapped + 1] = slot >= 0 ? slot : scoring.unknownSlot();
+        }
+        return cacheSlots;
+    }
+    
+    ///Scores a message file within the byte budget, the score tells if and why it stopped early
+    private static MessageScore scoreFile(File f) throws IOException
+    {
+        MessageScore score = new MessageScore();
+        if ( cache != null && scoring != null && maxBytes <= 0 && maxTokens <= 0 && margin <= 0 ){
+            ///Nothing stops early, so a message from the token cache is summed over its IDs in one go
+            int[] ids = cache.ids(f, readers.get());
+            double[] posteriors = { score.posteriRegular, score.posteriSpam };
+            score.tokens = scoring.sum(ids, ids.length, cacheSlots(cache), posteriors);
+            score.posteriRegular = posteriors[0];
+            score.posteriSpam = posteriors[1];
+            return score;
+        }
+        if ( maxBytes <= 0 ){
+            readMessage(f, score);
+            return score;
+        }
+        readers.get().read(f, score, maxBytes);
+        if ( score.stopped == null && f.length() > maxBytes ){
+            score.stopped = EarlyStop.BYTES;
+        }
+        return score;
+    }
+    
+    ///Asks a file then classifies the message based on vocab, the type is to calculate the correct/incorrect classification rate.
+    private static void classifyMessage(File f, MessageType type) throws IOException{ 
+         if ( results != null && cache != null && maxBytes <= 0 ){
+             classifyCachedTokens(f, type);
+             return;
+         }
+         if ( results != null && MessageReader.isByteCompatible() ){
+             ///The result cache needs the bytes that are scored, with -maxBytes only the first maxBytes are read
+             ByteBuffer body = readers.get().load(f, maxBytes > 0 ? maxBytes : Long.MAX_VALUE);
+             classifyMessage(body, f.length() > body.remaining(), type);
+             return;
+         }
+         long start = metrics != null ? System.nanoTime() : 0;
+         MessageScore score = scoreFile(f);
+         if ( metrics != null ){
+             metrics.classified(score.tokens, System.nanoTime() - start);
+         }
+         countClassification(score, type);
+    }
+    
+    ///The same for a message from a zip archive or mbox file
+    private static void classifyMessage(ByteBuffer body, MessageType type) throws IOException{ 
+         classifyMessage(body, false, type);
+    }
+    
+    ///Classifies a message in memory with the result cache, cut is set when body only holds the first maxBytes of it
+    private static void classifyMessage(ByteBuffer body, boolean cut, MessageType type) throws IOException{ 
+         long start = metrics != null ? System.nanoTime() : 0;
+         long key = 0;
+         if ( results != null ){
+             ///A copy of a message that was scored before is not tokenized again
+             key = ResultCache.key(body, maxBytes);
+             if ( countCachedResult(key, type, start) ){
+                 return;
+             }
+         }
+         MessageScore score = scoreBody(body);
+         if ( cut && score.stopped == null ){
+             score.stopped = EarlyStop.BYTES;
+         }
+         if ( results != null ){
+             results.put(key, score.posteriRegular - score.posteriSpam, score.stopped);
+         }
+         if ( metrics != null ){
+             metrics.classified(score.tokens, System.nanoTime() - start);
+         }
+         countClassification(score, type);
+    }
+    
+    ///Classifies a message file with the result cache keyed by its word IDs in the token cache, so it is not read
+    private static void classifyCachedTokens(File f, MessageType type) throws IOException{ 
+         long start = metrics != null ? System.nanoTime() : 0;
+         long key = ResultCache.key(cache.ids(f, readers.get()));
+         if ( countCachedResult(key, type, start) ){
+             return;
+         }
+         MessageScore score = scoreFile(f);
+         results.put(key, score.posteriRegular - score.posteriSpam, score.stopped);
+         if ( metrics != null ){
+             metrics.classified(score.tokens, System.nanoTime() - start);
+         }
+         countClassification(score, type);
+    }
+    
+    ///Counts a message whose result is in the result cache, returns false when it is not there
+    private static boolean countCachedResult(long key, MessageType type, long start){ 
+         ResultCache.Result cached = results.get(key);
+         if ( cached == null ){
+             return false;
+         }
+         if ( metrics != null ){
+             metrics.classified(0, System.nanoTime() - start);
+         }
+         countStop(cached.stopped);                      // the copy would have stopped at the same point
+         countClassification(cached.logOdds, type);
+         return true;
+    }
+    
+    ///Adds a scored message to the confusion matrix
+    private static void countClassification(MessageScore score, MessageType type){ 
+         countStop(score.stopped);
+         countClassification(score.posteriRegular - score.posteriSpam, type);
+    }
+    
+    ///Counts why the scoring of a message stopped early, nothing when it was scored to the end (null)
+    private static void countStop(EarlyStop stopped){ 
+         if ( stopped == EarlyStop.MARGIN ){
+             stoppedByMargin.increment();
+         } else if ( stopped == EarlyStop.TOKENS ){
+             stoppedByTokens.increment();
+         } else if ( stopped == EarlyStop.BYTES ){
+             stoppedByBytes.increment();
+         }
+    }
+    
+    ///Adds a message with the given log odds (posteriRegular - posteriSpam) to the confusion matrix
+    private static void countClassification(double logOdds, MessageType type){ 
+         confusion.add(logOdds, type == MessageType.NORMAL);
+    }
+    
+    
+    /// List the regular and spam messages as one giant set of test messages to be classified
+    private static void listTest(File dir_location) throws IOException
+    {
+        SpamCorpus test = SpamCorpus.test(dir_location);
+        File[] regularListing = test.regular;
+        File[] spamListing = test.spam;
         
+        if ( evalThreads != null ){
+        	classifyInParallel(regularListing, spamListing);
+        	return;
+        }
         
         for(File listing : regularListing){
         	classifyMessage(listing, MessageType.NORMAL);
@@ -330,67 +841,604 @@ public class Bayespam
         	classifyMessage(listing, MessageType.SPAM);
         }        
     }
+    
+    ///Classifies the messages of a zip archive or mbox files one after another, -evalThreads is not used for them
+    private static void testCorpus(File corpus) throws IOException
+    {
+        CorpusSource source = CorpusSource.open(corpus);
+        try {
+            source.forEach((spam, body) -> classifyMessage(body, spam ? MessageType.SPAM : MessageType.NORMAL));
+        } finally {
+            source.close();
+        }
+    }
+    
+    ///Classifies every test message as a separate task on the executor chosen with -evalThreads
+    private static void classifyInParallel(File[] regularListing, File[] spamListing) throws IOException
+    {
+        if ( scoring == null && offHeap == null ){
+            calcCCL();                                  // the lazy CCLs of online training are not thread safe
+        }
+        ExecutorService executor = newEvalExecutor();
+        List<Future<Void>> results = new ArrayList<Future<Void>>(regularListing.length + spamListing.length);
+        try {
+            for(File listing : regularListing){
+            	results.add(executor.submit(classifyTask(listing, MessageType.NORMAL)));
+            }
+            for(File listing : spamListing){
+            	results.add(executor.submit(classifyTask(listing, MessageType.SPAM)));
+            }
+            for(Future<Void> result : results){
+            	result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("classification was interrupted");
+        } catch (ExecutionException e) {
+            if ( e.getCause() instanceof IOException ){
+            	throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static Callable<Void> classifyTask(final File f, final MessageType type)
+    {
+        return () -> {
+            classifyMessage(f, type);
+            return null;
+        };
+    }
+    
+    ///A fixed pool of evalThreads threads (0 is one per core), or with "virtual" a new virtual thread for every message,
+    ///for spools where the disk is the bottleneck. Virtual threads need Java 21, older runtimes get a thread per core.
+    private static ExecutorService newEvalExecutor()
+    {
+        if ( evalThreads.equals("virtual") ){
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println( "- Warning: virtual threads are not available, using a thread per core.\n" );
+                return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            }
+        }
+        int threads = Integer.parseInt(evalThreads);
+        if ( threads <= 0 ){
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
 
    
+    ///Saves the trained model (vocabulary, probabilities, word totals and CCLs) so it can be loaded without training
+    private static void saveModel(File file) throws IOException
+    {
+        if ( features != null )
+        {
+            System.out.println( "- Error: a model with hashed features can not be saved.\n" );
+            Runtime.getRuntime().exit(0);
+        }
+        if ( scoring == null ){
+            calcCCL();                                  // bring every CCL up to date after online training
+        }
+        ModelFile model = new ModelFile();
+        model.probRegular = probRegular;
+        model.probSpam = probSpam;
+        model.regularMessages = regularMessages;
+        model.spamMessages = spamMessages;
+        model.totalRegularWords = totalRegularWords;
+        model.totalSpamWords = totalSpamWords;
+        model.vocab = vocab;
+        model.ccl = ccl;
+        model.index = scoring;
+        model.save(file);
+    }
+    
+    ///Loads a saved model instead of training one
+    static void loadModel(File file) throws IOException
+    {
+        if ( results != null ){
+            results.invalidate();
+        }
+        if ( offHeapModel ){
+            ModelFile model = ModelFile.loadOffHeap(file);
+            probRegular = model.probRegular;
+            probSpam = model.probSpam;
+            regularMessages = model.regularMessages;
+            spamMessages = model.spamMessages;
+            totalRegularWords = model.totalRegularWords;
+            totalSpamWords = model.totalSpamWords;
+            offHeap = model.offHeap;
+            return;
+        }
+        ModelFile model = ModelFile.load(file);
+        probRegular = model.probRegular;
+        probSpam = model.probSpam;
+        regularMessages = model.regularMessages;
+        spamMessages = model.spamMessages;
+        totalRegularWords = model.totalRegularWords;
+        totalSpamWords = model.totalSpamWords;
+        vocab = model.vocab;
+        ccl = model.ccl;
+        cclGeneration = new int[vocab.size()];
+        Arrays.fill(cclGeneration, generation);
+        scoring = model.index != null ? model.index : new PerfectHashIndex(vocab, ccl);
+    }
+    
+    ///Reads the optional settings that follow the directories (or model file) on the cmd line
+    private static void parseOptions(String[] args, int first)
+    {
+        for (int i = first; i < args.length; ++i)
+        {
+            if ( args[i].equals("-threads") && i + 1 < args.length ){
+                trainingThreads = Integer.parseInt(args[++i]);
+                if ( trainingThreads <= 0 ){
+                    trainingThreads = Runtime.getRuntime().availableProcessors();
+                }
+            } else if ( args[i].equals("-workers") && i + 1 < args.length ){
+                workers = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-evalThreads") && i + 1 < args.length ){
+                evalThreads = args[++i];
+            } else if ( args[i].equals("-hashBuckets") && i + 1 < args.length ){
+                hashBuckets = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-minCount") && i + 1 < args.length ){
+                minCount = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-sketchWidth") && i + 1 < args.length ){
+                sketchWidth = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-tuning") && i + 1 < args.length ){
+                tuningParameter = Double.parseDouble(args[++i]);
+            } else if ( args[i].equals("-maxTokens") && i + 1 < args.length ){
+                maxTokens = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-maxBytes") && i + 1 < args.length ){
+                maxBytes = Long.parseLong(args[++i]);
+            } else if ( args[i].equals("-margin") && i + 1 < args.length ){
+                margin = Double.parseDouble(args[++i]);
+            } else if ( args[i].equals("-cache") && i + 1 < args.length ){
+                cacheFile = new File(args[++i]);
+            } else if ( args[i].equals("-metrics") && i + 1 < args.length ){
+                metricsInterval = Integer.parseInt(args[++i]);
+                metrics = new SpamMetrics();
+            } else if ( args[i].equals("-offHeap") ){
+                offHeapModel = true;
+            } else if ( args[i].equals("-vectorKernel") ){
+                if ( !ScoringKernel.vectorize(true) ){
+                    System.out.println( "- Error: -vectorKernel needs the vector/ kernel built and the jdk.incubator.vector module\n" );
+                    Runtime.getRuntime().exit(0);
+                }
+            } else if ( args[i].equals("-resultCache") && i + 1 < args.length ){
+                useResultCache(Integer.parseInt(args[++i]));
+            } else if ( args[i].equals("-save") && i + 1 < args.length ){
+                modelFile = new File(args[++i]);
+            } else {
+                System.out.println( "- Error: unknown option " + args[i] + "\n" );
+                Runtime.getRuntime().exit(0);
+            }
+        }
+    }
+    
     public static void main(String[] args)
     throws IOException
     {
+        // Training worker: "-shard <i>/<N> <training directory> <count file>" counts shard i of N of the training set
+        if ( args[0].equals("-shard") )
+        {
+            String[] shard = args[1].split("/");
+            countShard(new File( args[2] ), Integer.parseInt(shard[0]), Integer.parseInt(shard[1]), new File( args[3] ));
+            return;
+        }
+        
+        // Merge only: "-merge <model file> <count file>..." merges the count files of all shards and saves the model
+        if ( args[0].equals("-merge") )
+        {
+            List<File> countFiles = new ArrayList<File>();
+            for (int i = 2; i < args.length; ++i){
+                countFiles.add(new File( args[i] ));
+            }
+            mergeCounts(countFiles);
+            calcCCL();
+            saveModel(new File( args[1] ));
+            return;
+        }
+        
+        // Classify only: "-model <model file> <test directory>" loads a saved model instead of training one
+        if ( args[0].equals("-model") )
+        {
+            parseOptions(args, 3);
+            startMetrics();
+            openCache();
+            loadModel(new File( args[1] ));
+            modelMetrics();
+            test(new File( args[2] ));
+            closeCache();
+            stopMetrics();
+            return;
+        }
+        
+        // The training and test directories can also be zip archives or mbox files (see CorpusSource), which are
+        // read without extracting them, e.g. spam-filter.zip!spam-filter/train spam-filter.zip!spam-filter/test
+        //
+        // Optional settings:
+        //   -threads N          reads the training set with N threads, 0 uses all cores
+        //   -workers N          reads the training set with N worker processes, that each count a shard
+        //   -evalThreads N      classifies the test set in parallel, N can also be "virtual"
+        //   -save <file>        saves the trained model
+        //   -hashBuckets N      counts the words in N hashed buckets
+        //   -minCount N         only keeps the words that occur N times, counting the others in count-min sketches
+        //                       of -sketchWidth N counters per row (with this or -hashBuckets one thread reads)
+        //   -cache <file>       keeps the tokens of unchanged messages in a file, without early termination the
+        //                       test messages are then scored from their word IDs (see ScoringKernel)
+        //   -vectorKernel       sums those word IDs with the Vector API kernel instead of the scalar loop
+        //   -tuning X           replaces the tuning parameter
+        //   -maxTokens N, -maxBytes N, -margin X stop scoring a message early
+        //   -offHeap            keeps the model outside the heap once it is trained (or loaded with -model), for
+        //                       scoring only
+        //   -metrics N          times the phases and shows them through JMX, with a log line every N seconds (0: none)
+        //                       and a summary at the end
+        //   -resultCache N      remembers the scores of the last N distinct messages, so copies of a message (such
+        //                       as a spam campaign) are scored once
+        parseOptions(args, 2);
+        startMetrics();
+        openCache();
+        
         // Location of the directory (the path) taken from the cmd line (first arg)
         File dir_location = new File( args[0] );
         
-        // Check if the cmd line arg is a directory
-        if ( !dir_location.isDirectory() )
+        // Check if the cmd line arg is a directory (or a zip archive or mbox files, see CorpusSource)
+        if ( !dir_location.isDirectory() && !CorpusSource.isCorpus(dir_location) )
         {
             System.out.println( "- Error: cmd line arg not a directory.\n" );
             Runtime.getRuntime().exit(0);
         }
 
-        // Initialize the regular and spam lists
-        listDirs(dir_location);
+        if ( workers > 1 ){
+            if ( metrics != null ){
+                metrics.begin(SpamMetrics.Phase.TRAINING);
+            }
+            trainWithWorkers(dir_location);
+            if ( metrics != null ){
+                metrics.end(SpamMetrics.Phase.TRAINING);
+            }
+        } else {
+            countTrainingSet(dir_location);
+        }
+        
+        ///We calculate the class conditional likelihood
+        if ( metrics != null ){
+            metrics.begin(SpamMetrics.Phase.CCL);
+        }
+        calcCCL();
+        if ( metrics != null ){
+            metrics.end(SpamMetrics.Phase.CCL);
+        }
+        modelMetrics();
+        
+        if ( features != null ){
+            System.out.println(features.report());
+        }
+        if ( admissionRegular != null ){
+            System.out.println("Count-min admission: " + vocab.size() + " words occurred at least " + minCount
+                + " times, the sketches use " + (admissionRegular.bytes() + admissionSpam.bytes()) / 1024 + " KB");
+        }
+        
+        if ( modelFile != null ){
+            saveModel(modelFile);
+        }
+        if ( offHeapModel ){
+            moveOffHeap();
+            modelMetrics();
+        }
+        
+        // Location of the directory (the path) taken from the cmd line (second arg)
+        test(new File( args[1] ));
+        closeCache();
+        stopMetrics();
+    }
+    
+    ///The metrics of -metrics are registered with JMX before anything is read, the summary is printed at the end
+    private static void startMetrics()
+    {
+        if ( metrics != null ){
+            metrics.register();
+            if ( metricsInterval > 0 ){
+                metrics.startLog(metricsInterval);
+            }
+        }
+    }
+    
+    private static void stopMetrics()
+    {
+        if ( metrics != null ){
+            metrics.stopLog();
+            System.out.println(metrics.report());
+        }
+    }
+    
+    ///Scores are remembered for up to capacity distinct messages, 0 scores every message again
+    static void useResultCache(int capacity)
+    {
+        results = capacity > 0 ? new ResultCache(capacity) : null;
+    }
+    
+    ///The hits, misses and evictions of -resultCache, null without it
+    static String resultCacheReport()
+    {
+        return results != null ? results.report() : null;
+    }
+    
+    ///Replaces the trained model by an off-heap scoring table, the vocabulary and CCLs are left to the garbage collector
+    private static void moveOffHeap()
+    {
+        if ( features != null )
+        {
+            System.out.println( "- Error: a model with hashed features can not be moved off the heap.\n" );
+            Runtime.getRuntime().exit(0);
+        }
+        offHeap = (scoring != null ? scoring : new PerfectHashIndex(vocab, ccl)).offHeap();
+        vocab = new TokenDictionary();
+        ccl = new double[0];
+        cclGeneration = new int[0];
+        scoring = null;
+    }
+    
+    ///Passes the size of the trained or loaded model to the metrics
+    private static void modelMetrics()
+    {
+        if ( metrics == null ){
+            return;
+        }
+        if ( offHeap != null ){
+            metrics.model(offHeap.size(), offHeap.bytes());
+            return;
+        }
+        if ( features != null ){
+            metrics.model((int) Math.min(features.estimatedWords(), Integer.MAX_VALUE), 12L * features.buckets() + 8L * bucketCCL.length);
+            return;
+        }
+        metrics.model(vocab.size(), vocab.bytes() + 8L * ccl.length + 4L * cclGeneration.length
+            + (scoring != null ? scoring.bytes() : 0));
+    }
+    
+    ///The token cache of -cache is loaded before the messages are read and saved when they all have been read
+    private static void openCache() throws IOException
+    {
+        if ( cacheFile != null ){
+            cache = loadTokenCache(cacheFile);
+        }
+    }
+    
+    ///A token cache for the tokenizer of Bayespam, empty when the file does not exist
+    static TokenCache loadTokenCache(File file) throws IOException
+    {
+        return TokenCache.load(file, shortWordSize, false);
+    }
+    
+    private static void closeCache() throws IOException
+    {
+        if ( cache != null ){
+            cache.save();
+            System.out.println(cache.report());
+        }
+    }
+    
+    ///Reads the training directory into a new vocabulary and calculates the probabilities and word totals, calcCCL
+    ///has to follow before anything is classified. Everything from an earlier training run is thrown away.
+    static void countTrainingSet(File dir_location)
+    throws IOException
+    {
+        vocab = new TokenDictionary();
+        features = hashBuckets > 0 ? new HashedFeatures(hashBuckets) : null;
+        admissionRegular = minCount > 1 ? new CountMinSketch(sketchWidth) : null;
+        admissionSpam = minCount > 1 ? new CountMinSketch(sketchWidth) : null;
+        totalRegularWords = 0;
+        totalSpamWords = 0;
+        
+        if ( CorpusSource.isCorpus(dir_location) ){
+            readCorpus(dir_location);
+        } else {
+            // Initialize the regular and spam lists
+            if ( metrics != null ){
+                metrics.begin(SpamMetrics.Phase.LISTING);
+            }
+            listDirs(dir_location);
+            if ( metrics != null ){
+                metrics.end(SpamMetrics.Phase.LISTING);
+                metrics.begin(SpamMetrics.Phase.TRAINING);
+            }
 
-        // Read the e-mail messages
-        readMessages(MessageType.NORMAL);
-        readMessages(MessageType.SPAM);
+            // Read the e-mail messages
+            readMessages(MessageType.NORMAL);
+            readMessages(MessageType.SPAM);
+            if ( metrics != null ){
+                metrics.end(SpamMetrics.Phase.TRAINING);
+            }
+            regularMessages = listing_regular.length;
+            spamMessages = listing_spam.length;
+        }
        
         ///Below takes the regular length and spam length and calculates probability
-        calcPReg(listing_regular.length, listing_spam.length);
-        calcPSpam(listing_regular.length, listing_spam.length);
+        calcPReg(regularMessages, spamMessages);
+        calcPSpam(regularMessages, spamMessages);
 
         ///Then we count the total words so we can use this in our calcCCL
         countAllWords();
+    }
+    
+    ///Reads the training messages of a zip archive or mbox files (see CorpusSource) one after another and counts them
+    private static void readCorpus(File corpus)
+    throws IOException
+    {
+        final WordCounter regular = new WordCounter(MessageType.NORMAL, vocab);
+        final WordCounter spam = new WordCounter(MessageType.SPAM, vocab);
+        regularMessages = 0;
+        spamMessages = 0;
         
-        ///We calculate the class conditional likelihood
-        calcCCL();
+        if ( metrics != null ){
+            metrics.begin(SpamMetrics.Phase.TRAINING);
+        }
+        CorpusSource source = CorpusSource.open(corpus);
+        try {
+            source.forEach((isSpam, body) -> {
+                WordCounter counter = isSpam ? spam : regular;
+                int words = counter.words;
+                long bytes = body.remaining();
+                readers.get().read(body, counter);
+                if ( isSpam ){
+                    ++spamMessages;
+                } else {
+                    ++regularMessages;
+                }
+                if ( metrics != null ){
+                    metrics.trained(counter.words - words, bytes);
+                }
+            });
+        } finally {
+            source.close();
+        }
+        if ( metrics != null ){
+            metrics.end(SpamMetrics.Phase.TRAINING);
+        }
         
-        // Location of the directory (the path) taken from the cmd line (second arg)
-        File dir_messages = new File( args[1] );
+        if ( regularMessages == 0 || spamMessages == 0 )
+        {
+            System.out.println( "- Error: " + corpus + " does not contain both regular and spam messages.\n" );
+            Runtime.getRuntime().exit(0);
+        }
+    }
+    
+    ///Training worker: counts the messages of shard number shard of shards and writes the counts to a file. The shards
+    ///are consecutive ranges of the regular messages followed by the spam messages, the order readMessages reads them.
+    private static void countShard(File dir_location, int shard, int shards, File countFile)
+    throws IOException
+    {
+        listDirs(dir_location);
+        int messages = listing_regular.length + listing_spam.length;
+        int from = (int) ((long) messages * shard / shards);
+        int to = (int) ((long) messages * (shard + 1) / shards);
+        
+        CountFile counts = new CountFile();
+        counts.vocab = new TokenDictionary();
+        WordCounter regular = new WordCounter(MessageType.NORMAL, counts.vocab);
+        WordCounter spam = new WordCounter(MessageType.SPAM, counts.vocab);
+        for (int i = from; i < to; ++i)
+        {
+            if ( i < listing_regular.length ){
+                readMessage(listing_regular[i], regular);
+                ++counts.regularMessages;
+            } else {
+                readMessage(listing_spam[i - listing_regular.length], spam);
+                ++counts.spamMessages;
+            }
+        }
+        counts.save(countFile);
+    }
+    
+    ///Merges the count files of the shards, in shard order, into a new vocabulary and calculates the probabilities and
+    ///word totals. The vocabulary is the same, word IDs included, as the one countTrainingSet reads in one process.
+    static void mergeCounts(List<File> countFiles)
+    throws IOException
+    {
+        vocab = new TokenDictionary();
+        totalRegularWords = 0;
+        totalSpamWords = 0;
+        regularMessages = 0;
+        spamMessages = 0;
+        for (File countFile : countFiles)
+        {
+            CountFile counts = CountFile.load(countFile);
+            vocab.merge(counts.vocab);
+            regularMessages += counts.regularMessages;
+            spamMessages += counts.spamMessages;
+        }
+        calcPReg(regularMessages, spamMessages);
+        calcPSpam(regularMessages, spamMessages);
+        countAllWords();
+    }
+    
+    ///Reads the training set with worker processes (this class with -shard) on the same classpath, then merges their
+    ///count files. The workers only share the training directory and their count files.
+    private static void trainWithWorkers(File dir_location)
+    throws IOException
+    {
+        if ( hashBuckets > 0 || minCount > 1 )
+        {
+            System.out.println( "- Error: -workers can not be combined with -hashBuckets or -minCount.\n" );
+            Runtime.getRuntime().exit(0);
+        }
+        if ( CorpusSource.isCorpus(dir_location) )
+        {
+            System.out.println( "- Error: -workers needs a training directory, not a zip archive or mbox files.\n" );
+            Runtime.getRuntime().exit(0);
+        }
         
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        List<File> countFiles = new ArrayList<File>();
+        List<Process> processes = new ArrayList<Process>();
+        try {
+            for (int shard = 0; shard < workers; ++shard)
+            {
+                File countFile = File.createTempFile("bayespam-shard" + shard + "-", ".counts");
+                countFiles.add(countFile);
+                processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "Bayespam",
+                    "-shard", shard + "/" + workers, dir_location.getPath(), countFile.getPath()).inheritIO().start());
+            }
+            for (int shard = 0; shard < workers; ++shard)
+            {
+                if ( processes.get(shard).waitFor() != 0 || countFiles.get(shard).length() == 0 )
+                {
+                    System.out.println( "- Error: training worker " + shard + " failed.\n" );
+                    Runtime.getRuntime().exit(0);
+                }
+            }
+            mergeCounts(countFiles);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("training was interrupted");
+        } finally {
+            for (Process process : processes){
+                process.destroy();
+            }
+            for (File countFile : countFiles){
+                countFile.delete();
+            }
+        }
+    }
+    
+    ///Classifies the test directory and prints the confusion matrix
+    private static void test(File dir_messages)
+    throws IOException
+    {
         // Check if the cmd line arg is a directory
-        if ( !dir_messages.isDirectory() )
+        if ( !dir_messages.isDirectory() && !CorpusSource.isCorpus(dir_messages) )
         {
             System.out.println( "- Error: cmd line arg not a directory.\n" );
             Runtime.getRuntime().exit(0);
         }
 
         ///Finally we test this second arg/directory with our vocab
-        listTest(dir_messages);
+        if ( metrics != null ){
+            metrics.begin(SpamMetrics.Phase.CLASSIFICATION);
+        }
+        if ( CorpusSource.isCorpus(dir_messages) ){
+            testCorpus(dir_messages);
+        } else {
+            listTest(dir_messages);
+        }
+        if ( metrics != null ){
+            metrics.end(SpamMetrics.Phase.CLASSIFICATION);
+        }
                 
         ///output the confusion matrix
-        System.out.println("True Positvie count: " + truePositive);
-        System.out.println("False Postive count: " + falsePositive);
-        System.out.println("True Negative count: " + trueNegative);
-        System.out.println("False Negative count: " + falseNegative);
-        
-        int total = truePositive + falseNegative + trueNegative + falsePositive;
-        double incorrectClassified = (double) (falsePositive+falseNegative)/total;
-        double correctClassified = (double) (truePositive+trueNegative)/total;
-        double correctClassifiedSpam = (double) (trueNegative)/(trueNegative+falsePositive);
-        double correctClassifiedRegular = (double) (truePositive)/(truePositive+falseNegative);
-
-        System.out.println("Total Correct classified: " + correctClassified*100 + "%");
-        System.out.println("Total Incorrect classified: " + incorrectClassified*100 + "%");
-        System.out.println("Correct classified spam: " + correctClassifiedSpam*100 + "%");
-        System.out.println("Correct classified regular: " + correctClassifiedRegular*100 + "%");
+        confusion.print();
         
+        if ( maxTokens > 0 || maxBytes > 0 || margin > 0 ){
+            long margins = stoppedByMargin.sum(), budgets = stoppedByTokens.sum(), bytes = stoppedByBytes.sum();
+            System.out.println("Early terminated: " + (margins + budgets + bytes) + " of " + confusion.total()
+                + " messages (margin: " + margins + ", token budget: " + budgets + ", byte budget: " + bytes + ")");
+        }
+        if ( results != null ){
+            System.out.println(results.report());
+        }
     }
 }
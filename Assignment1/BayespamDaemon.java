@@ -0,0 +1,367 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// A resident classifier: loads a saved Bayespam model once and then keeps classifying the messages it receives on
+// stdin, or on a TCP port of the local machine, in micro-batches. The scores are the ones Bayespam gives in batch mode.
+//
+// Every request is a header line, most of them followed by a message that ends with a line holding a single "."
+// (a message line that starts with "." is sent with an extra "." in front, like SMTP does):
+//   CLASSIFY              answered with: <message number> <NORMAL|SPAM> <log odds regular vs spam>
+//   LEARN NORMAL|SPAM     adds the message to the model (online training), answered with: OK
+//   FORGET NORMAL|SPAM    takes a learned message out of the model again, answered with: OK (or an ERROR when the
+//                         message was not learned with that label, the model is left as it was)
+//                         LEARN and FORGET answer an ERROR for a model that can not be trained online (see
+//                         Bayespam.checkOnlineTraining)
+//   STATS                 no message, answered with the number of messages, the throughput and the p50/p99 latency
+//                         (and the hits and misses of the result cache)
+//
+// Usage: java BayespamDaemon <model file> [-port N] [-batch N] [-resultCache N]
+// With -resultCache the scores of the last N distinct messages are remembered (see ResultCache), LEARN and FORGET
+// clear them.
+public class BayespamDaemon
+{
+    private static final int defaultBatchSize = 64;
+    private static final int latencySamples = 10000;	///The percentiles are taken over this many of the latest messages
+
+    // Where the answers to the requests of one client go
+    static class Connection
+    {
+        final OutputStream out;
+        final Closeable socket;	///Closed once the client's requests are answered, null for stdin
+        int messages = 0;
+
+        Connection(OutputStream out, Closeable socket)
+        {
+            this.out = out;
+            this.socket = socket;
+        }
+    }
+
+    static class Request
+    {
+        final String command;
+        final Bayespam.MessageType type;
+        final ByteBuffer message;
+        final Connection connection;
+        final boolean closes;	///Not a request of the client: its connection is closed after the answers before it
+        final long received = System.nanoTime();
+
+        Request(String command, Bayespam.MessageType type, ByteBuffer message, Connection connection)
+        {
+            this(command, type, message, connection, false);
+        }
+
+        Request(String command, Bayespam.MessageType type, ByteBuffer message, Connection connection, boolean closes)
+        {
+            this.command = command;
+            this.type = type;
+            this.message = message;
+            this.connection = connection;
+            this.closes = closes;
+        }
+    }
+
+    // Put in the queue when stdin is closed
+    private static final Request endOfInput = new Request("END", null, null, null);
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+    private final int batchSize;
+
+    // Statistics, only touched by the scoring thread
+    private final long started = System.nanoTime();
+    private long scored = 0;
+    private long measured = 0;
+    private final long[] latencies = new long[latencySamples];
+
+    public BayespamDaemon(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    // Reads requests until the input ends and queues them for the scoring thread
+    void readRequests(InputStream input, Connection connection) throws IOException, InterruptedException
+    {
+        InputStream in = new BufferedInputStream(input, 64 * 1024);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while ( readLine(in, line) )
+        {
+            String[] header = line.toString("US-ASCII").trim().split("\\s+");
+            String command = header[0].toUpperCase();
+            if ( command.isEmpty() ){
+                continue;
+            }
+
+            ByteBuffer message = null;
+            if ( command.equals("CLASSIFY") || command.equals("LEARN") || command.equals("FORGET") ){
+                message = readMessage(in, line);
+                if ( message == null ){
+                    break;                              // the input ended in the middle of a message
+                }
+            }
+
+            Bayespam.MessageType type = null;
+            if ( header.length > 1 ){
+                try {
+                    type = Bayespam.MessageType.valueOf(header[1].toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    command = "ERROR unknown message type " + header[1];
+                }
+            }
+            queue.put(new Request(command, type, message, connection));
+        }
+    }
+
+    // Queued when a client is done (or went away), so the scoring thread closes its connection once it has answered
+    // and flushed everything the client sent before
+    void closeWhenAnswered(Connection connection)
+    {
+        queue.add(new Request("CLOSE", null, null, connection, true));
+    }
+
+    // Reads message lines until the line with a single ".", removing the extra "." of lines that start with one
+    private static ByteBuffer readMessage(InputStream in, ByteArrayOutputStream line) throws IOException
+    {
+        ByteArrayOutputStream message = new ByteArrayOutputStream(4096);
+        while ( readLine(in, line) )
+        {
+            byte[] bytes = line.toByteArray();
+            int length = bytes.length;
+            while ( length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r') ){
+                --length;
+            }
+            if ( length == 1 && bytes[0] == '.' ){
+                return ByteBuffer.wrap(message.toByteArray());
+            }
+            int start = (bytes.length > 1 && bytes[0] == '.' && bytes[1] == '.') ? 1 : 0;
+            message.write(bytes, start, bytes.length - start);
+        }
+        return null;
+    }
+
+    // Reads one line including its \n into line, false at the end of the input
+    private static boolean readLine(InputStream in, ByteArrayOutputStream line) throws IOException
+    {
+        line.reset();
+        int b;
+        while ( (b = in.read()) != -1 )
+        {
+            line.write(b);
+            if ( b == '\n' ){
+                return true;
+            }
+        }
+        return line.size() > 0;
+    }
+
+    // Takes whatever is queued (up to batchSize requests), handles it and flushes the answers once per batch
+    void scoreBatches() throws InterruptedException
+    {
+        List<Request> batch = new ArrayList<Request>(batchSize);
+        Set<Connection> touched = new HashSet<Connection>();
+        List<Connection> closing = new ArrayList<Connection>();
+        while (true)
+        {
+            batch.add(queue.take());
+            queue.drainTo(batch, batchSize - 1);
+
+            boolean end = false;
+            for (Request request : batch)
+            {
+                if ( request == endOfInput ){
+                    end = true;
+                    break;
+                }
+                if ( request.closes ){
+                    closing.add(request.connection);
+                    continue;
+                }
+                answer(request.connection, handle(request));
+                touched.add(request.connection);
+            }
+            for (Connection connection : touched)
+            {
+                try {
+                    connection.out.flush();
+                } catch (IOException e) {
+                    // the client went away, its remaining answers are dropped
+                }
+            }
+            for (Connection connection : closing)
+            {
+                try {
+                    connection.out.flush();
+                } catch (IOException e) {
+                    // the client went away
+                }
+                try {
+                    connection.socket.close();
+                } catch (IOException e) {
+                    // nothing more to do
+                }
+            }
+
+            long now = System.nanoTime();
+            for (Request request : batch)
+            {
+                if ( request.command.equals("CLASSIFY") ){
+                    latencies[(int) (measured++ % latencySamples)] = now - request.received;
+                }
+            }
+            batch.clear();
+            touched.clear();
+            closing.clear();
+            if ( end ){
+                return;
+            }
+        }
+    }
+
+    private String handle(Request request)
+    {
+        try {
+            if ( request.command.equals("CLASSIFY") ){
+                double logOdds = Bayespam.scoreMessage(request.message);
+                ++scored;
+                Bayespam.MessageType label = logOdds > 0 ? Bayespam.MessageType.NORMAL : Bayespam.MessageType.SPAM;
+                return ++request.connection.messages + " " + label + " " + logOdds;
+            }
+            if ( (request.command.equals("LEARN") || request.command.equals("FORGET")) && request.type == null ){
+                return "ERROR " + request.command + " needs NORMAL or SPAM";
+            }
+            if ( request.command.equals("LEARN") ){
+                Bayespam.learnMessage(request.message, request.type);
+                return "OK";
+            }
+            if ( request.command.equals("FORGET") ){
+                Bayespam.forgetMessage(request.message, request.type);
+                return "OK";
+            }
+            if ( request.command.equals("STATS") ){
+                return stats();
+            }
+            if ( request.command.startsWith("ERROR") ){
+                return request.command;
+            }
+            return "ERROR unknown request " + request.command;
+        } catch (IOException e) {
+            return "ERROR " + e.getMessage();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            return "ERROR " + e.getMessage();                // such as forgetting a message that was never learned
+        }
+    }
+
+    private static void answer(Connection connection, String answer)
+    {
+        try {
+            connection.out.write((answer + "\n").getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    // Number of classified messages, messages per second since the start and the latency percentiles in milliseconds
+    String stats()
+    {
+        int n = (int) Math.min(measured, latencySamples);
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return "STATS messages=" + scored
+            + " throughput=" + String.format(Locale.ROOT, "%.1f", scored / seconds) + "/s"
+            + " p50=" + String.format(Locale.ROOT, "%.3f", percentile(sorted, 0.50) / 1e6) + "ms"
+            + " p99=" + String.format(Locale.ROOT, "%.3f", percentile(sorted, 0.99) / 1e6) + "ms"
+            + (Bayespam.resultCacheReport() != null ? " " + Bayespam.resultCacheReport() : "");
+    }
+
+    private static long percentile(long[] sorted, double fraction)
+    {
+        if ( sorted.length == 0 ){
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    public static void main(String[] args)
+    throws IOException, InterruptedException
+    {
+        if ( args.length < 1 )
+        {
+            System.out.println( "- Error: usage: java BayespamDaemon <model file> [-port N] [-batch N] [-resultCache N]\n" );
+            Runtime.getRuntime().exit(0);
+        }
+
+        int port = -1;
+        int batchSize = defaultBatchSize;
+        for (int i = 1; i < args.length; ++i)
+        {
+            if ( args[i].equals("-port") && i + 1 < args.length ){
+                port = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-batch") && i + 1 < args.length ){
+                batchSize = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ( args[i].equals("-resultCache") && i + 1 < args.length ){
+                Bayespam.useResultCache(Integer.parseInt(args[++i]));
+            } else {
+                System.out.println( "- Error: unknown option " + args[i] + "\n" );
+                Runtime.getRuntime().exit(0);
+            }
+        }
+
+        ///The model is loaded once, every message after that is only scored
+        Bayespam.loadModel(new File( args[0] ));
+
+        final BayespamDaemon daemon = new BayespamDaemon(batchSize);
+        Thread scorer = new Thread(() -> {
+            try {
+                daemon.scoreBatches();
+            } catch (InterruptedException e) {
+                // stop scoring
+            }
+        }, "bayespam-scorer");
+        scorer.start();
+
+        if ( port < 0 ){
+            daemon.readRequests(System.in, new Connection(new BufferedOutputStream(System.out), null));
+            daemon.queue.put(endOfInput);
+            scorer.join();
+            System.err.println(daemon.stats());
+            return;
+        }
+
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        while (true)
+        {
+            final Socket socket = server.accept();
+            Thread client = new Thread(() -> {
+                Connection connection = null;
+                try {
+                    connection = new Connection(new BufferedOutputStream(socket.getOutputStream()), socket);
+                    daemon.readRequests(socket.getInputStream(), connection);
+                } catch (IOException e) {
+                    // the client went away
+                } catch (InterruptedException e) {
+                    // shutting down
+                } finally {
+                    ///The socket is closed by the scoring thread after the last answer, or here when there is none
+                    if ( connection != null ){
+                        daemon.closeWhenAnswered(connection);
+                    } else {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // nothing more to do
+                        }
+                    }
+                }
+            }, "bayespam-client");
+            client.setDaemon(true);
+            client.start();
+        }
+    }
+}
@@ -11,19 +11,93 @@ public class BigramBayespam {
 	        NORMAL, SPAM
 	    }
 
-	    // This a class with two counters (for regular and for spam)
-	    static class Multiple_Counter
+	    // Turns the words it receives into bigrams of two words on the same line. A bigram is not a String but the keys of
+	    // its two words packed into one long, the last word in the high half. The subclass gives the key of a word: its ID
+	    // in the word dictionary, its hash in the hashed feature mode, or -1 for a word the model has never seen.
+	    static abstract class BigramSink implements Tokenizer.TokenSink
 	    {
-	        int counter_spam    = 0;
-	        int counter_regular = 0;
+	        private long last = -1;
 
-	        // Increase one of the counters by one
-	        public void incrementCounter(MessageType type)
+	        abstract long word(char[] chars, int length);
+
+	        abstract void bigram(long key);
+
+	        public void token(char[] chars, int length)
 	        {
-	            if ( type == MessageType.NORMAL ){
-	                ++counter_regular;
-	            } else {
-	                ++counter_spam;
+	            long current = word(chars, length);
+	            if ( last >= 0 && current >= 0 ){
+	                bigram(last << 32 | current);
+	            }
+	            last = current;                             // the current word is the last word of the next bigram
+	        }
+
+	        public void endOfLine()
+	        {
+	            last = -1;
+	        }
+	    }
+
+	    // Adds every bigram to the vocabulary with the given message type
+	    static class BigramCounter extends BigramSink
+	    {
+	        private final MessageType type;
+
+	        BigramCounter(MessageType type)
+	        {
+	            this.type = type;
+	        }
+
+	        long word(char[] chars, int length)
+	        {
+	            if ( features != null ){
+	                return hashKey(chars, length);
+	            }
+	            return words.add(chars, length);            // new words get the next ID
+	        }
+
+	        void bigram(long key)
+	        {
+	            addBigram(key, type);
+	        }
+	    }
+
+	    // Adds the class conditional likelihoods of the bigrams to the posteriors of a message
+	    static class MessageScore extends BigramSink
+	    {
+	        ///Posteri of regular and spam are initialized with the probabilities
+	        double posteriRegular = probRegular;
+	        double posteriSpam = probSpam;
+
+	        long word(char[] chars, int length)
+	        {
+	            if ( features != null ){
+	                return hashKey(chars, length);
+	            }
+	            return words.lookup(chars, length);         // -1 for a word of no trained bigram
+	        }
+
+	        void bigram(long key)
+	        {
+	            if ( features != null ){
+	                int bucket = features.bucket(key);
+	                if ( features.regularCount(bucket) != 0 || features.spamCount(bucket) != 0 ){
+	                    posteriRegular += bucketCCL[2 * bucket];
+	                    posteriSpam += bucketCCL[2 * bucket + 1];
+	                }
+	                return;
+	            }
+	            if ( offHeap != null ){
+	                int slot = offHeap.find(key);
+	                if ( slot >= 0 ){
+	                    posteriRegular += offHeap.regular(slot);
+	                    posteriSpam += offHeap.spam(slot);
+	                }
+	                return;
+	            }
+	            int id = vocab.lookup(key);
+	            if ( id >= 0 ){
+	                posteriRegular += ccl[2 * id];
+	                posteriSpam += ccl[2 * id + 1];
 	            }
 	        }
 	    }
@@ -33,95 +107,134 @@ public class BigramBayespam {
 	    private static File[] listing_spam = new File[0];
 	    private static File[] listing_test = new File[0];
 	    
-	    // A hash table for the vocabulary (word searching is very fast in a hash table)
-	    private static Hashtable <String, Multiple_Counter> vocab = new Hashtable <String, Multiple_Counter> ();
-	    private static Hashtable <String, Double> cclRegular = new Hashtable <String, Double> ();
-	    private static Hashtable <String, Double> cclSpam = new Hashtable <String, Double> ();
+	    // Every word gets an ID (its counts are not used), the vocabulary gives every bigram of two word IDs another ID,
+	    // the counts and the class conditional likelihoods are arrays indexed by that ID
+	    private static TokenDictionary words = new TokenDictionary();
+	    private static LongCountMap vocab = new LongCountMap();
+	    private static double[] ccl = new double[0];	///CCL regular at 2 * ID, CCL spam at 2 * ID + 1
+	    
+	    // With -hashBuckets N the bigrams are counted in N hashed buckets instead of the vocabulary (null: exact bigrams)
+	    private static HashedFeatures features = null;
+	    private static double[] bucketCCL = new double[0];	///CCL regular at 2 * bucket, CCL spam at 2 * bucket + 1
+	    private static int hashBuckets = 0;
+	    
+	    // With -memoryBudget the vocabulary has a fixed capacity, when it is full it is spilled to disk as a sorted run
+	    // and the runs are merged into the final counts (null: everything is counted in memory)
+	    private static SpilledCounts spilled = null;
+	    private static long memoryBudget = 0;	///Bytes for the vocabulary while reading, 0 is no limit
+	    private static int spilledRuns = 0;
+	    private static final int bytesPerBigram = 24;	///A key, two counts and two table slots of a LongCountMap
+	    
+	    // With -offHeap the bigrams and their CCLs are only kept in this table outside the heap once the CCLs are
+	    // calculated (null: on-heap)
+	    private static OffHeapBigramTable offHeap = null;
+	    private static boolean offHeapModel = false;
 
 	    ///These are our constant values
-	    private static final int sizeOfRegularFolder = 28;	///We know this is the regular/spam folder based on size(this is the max size of regular)
 	    private static final double tuningParameter = 0.02;
 	    private static final int minimalWordSize = 3;
 	    private static final int minimumCount = 4;
 	    
+	    ///Drops the words up to minimalWordSize letters and, like the {0,n} regex of cleanLine did, collapses whitespace
+	    private static MessageReader reader = new MessageReader(newTokenizer());
+	    
+	    static Tokenizer newTokenizer()
+	    {
+	        return new Tokenizer(minimalWordSize, true);
+	    }
+	    
 	    private static double probRegular;
 		private static double probSpam;
 	    private static int totalRegularWords = 0;
 		private static int totalSpamWords = 0;
 	    
-		private static int truePositive = 0;	///Regular and classified regular
-		private static int falsePositive = 0;	///Spam and classified regular
-		private static int trueNegative = 0;	///Spam and classified spam
-		private static int falseNegative = 0;	///Regular and classified spam
+		private static final SpamCorpus.ConfusionMatrix confusion = new SpamCorpus.ConfusionMatrix();
 		
 		///Filters words from the vocab if they occur below the minimum count
-		private static void filterBigramCount(){
-
-			Multiple_Counter counter = new Multiple_Counter();
-			int totalCount;
+		private static void filterBigramCount() throws IOException{
+			if ( features != null ){
+				features.filter(minimumCount);
+				return;
+			}
+			if ( spilled != null && spilled.spilled() ){
+				spilledRuns = spilled.runs() + 1;        // the counts still in memory become the last run
+				vocab = spilled.merge(minimumCount);
+			} else {
+				vocab = vocab.filter(minimumCount);
+			}
 			
-			for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
-		        {   
-		            String word;
-		            
-		            word = e.nextElement();
-		            counter  = vocab.get(word);
-		          
-		            totalCount = counter.counter_regular + counter.counter_spam;
-		            if(totalCount < minimumCount) vocab.remove(word);
-		        }
+			///Only keep the words of the remaining bigrams, a smaller word dictionary is faster to score with
+			TokenDictionary kept = new TokenDictionary();
+			LongCountMap renumbered = new LongCountMap(vocab.size());
+			for (int id = 0; id < vocab.size(); ++id)
+			{
+				long key = vocab.key(id);
+				long last = kept.add(words.word((int) (key >>> 32)));
+				long current = kept.add(words.word((int) key));
+				renumbered.addCount(renumbered.add(last << 32 | current), vocab.regularCount(id), vocab.spamCount(id));
+			}
+			words = kept;
+			vocab = renumbered;
 		}
 		
-	    // Add a word to the vocabulary
-	    private static void addBigram(String word, MessageType type)
+	    // Add a bigram to the vocabulary
+	    private static void addBigram(long key, MessageType type)
 	    {
-	        Multiple_Counter counter = new Multiple_Counter();
-
-	        if ( vocab.containsKey(word) ){                  // if word exists already in the vocabulary..
-	            counter = vocab.get(word);                  // get the counter from the hashtable
+	        if ( features != null ){
+	            features.add(key, type == MessageType.NORMAL ? 1 : 0, type == MessageType.SPAM ? 1 : 0);
+	            return;
 	        }
-	        counter.incrementCounter(type);                 // increase the counter appropriately
+	        
+	        int id = vocab.add(key);                        // the ID of the bigram, new bigrams start with zero counts
 
-	        vocab.put(word, counter);                       // put the word with its counter into the hashtable
+	        if ( type == MessageType.NORMAL ){              // increase the counter appropriately
+	            vocab.addCount(id, 1, 0);
+	        } else {
+	            vocab.addCount(id, 0, 1);
+	        }
+	        
+	        if ( spilled != null && spilled.full() ){
+	            try {
+	                spilled.spill();                        // the vocabulary is empty again afterwards
+	            } catch (IOException e) {
+	                throw new UncheckedIOException(e);
+	            }
+	        }
+	    }
+	    
+	    // The key of a word in the hashed feature mode: its String hash, as a positive long
+	    private static long hashKey(char[] chars, int length)
+	    {
+	        int hash = 0;
+	        for (int i = 0; i < length; ++i){
+	            hash = 31 * hash + chars[i];
+	        }
+	        return hash & 0xFFFFFFFFL;
+	    }
+	    
+	    // The "last current" text of a bigram in the vocabulary
+	    private static String bigramText(int id)
+	    {
+	        long key = vocab.key(id);
+	        return words.word((int) (key >>> 32)) + " " + words.word((int) key);
 	    }
 
 	    // List the regular and spam messages
 	    private static void listDirs(File dir_location)
 	    {
-	        // List all files in the directory passed
-	        File[] dir_listing = dir_location.listFiles();
-
-	        // Check that there are 2 subdirectories
-	        if ( dir_listing.length != 2 )
-	        {
-	            System.out.println( "- Error: specified directory does not contain two subdirectories.\n" );
-	            Runtime.getRuntime().exit(0);
-	        }
-
-	        if(dir_listing[0].listFiles().length>sizeOfRegularFolder){
-	        	listing_regular = dir_listing[0].listFiles();
-	        	listing_spam    = dir_listing[1].listFiles();
-	        }else{
-	        	listing_spam = dir_listing[0].listFiles();
-	        	listing_regular    = dir_listing[1].listFiles();
-	        }
+	        SpamCorpus corpus = SpamCorpus.training(dir_location);
+	        listing_regular = corpus.regular;
+	        listing_spam = corpus.spam;
 	    }
 
 	    
 	    // Print the current content of the vocabulary (debug)
 	    private static void printVocab()
 	    {
-	        Multiple_Counter counter = new Multiple_Counter();
-
-	        for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
+	        for (int id = 0; id < vocab.size(); ++id)
 	        {   
-	            String word;
-	            
-	            word = e.nextElement();
-	            counter  = vocab.get(word);
-	            
-	            System.out.println( word + " | in regular: " + counter.counter_regular + 
-	                                " in spam: "    + counter.counter_spam);
+	            System.out.println( bigramText(id) + " | in regular: " + vocab.regularCount(id) + 
+	                                " in spam: "    + vocab.spamCount(id));
 	        }
 	    }
 
@@ -139,35 +252,14 @@ public class BigramBayespam {
 	            messages = listing_spam;
 	        }
 	        
-	        for (int i = 0; i < messages.length; ++i)
-	        {
-	            FileInputStream i_s = new FileInputStream( messages[i] );
-	            BufferedReader in = new BufferedReader(new InputStreamReader(i_s));
-	            String line;
-	            String word;
-	            String lastWord = "";
-	            String currentWord;
-
-	            
-	            while ((line = in.readLine()) != null)                      // read a line
+	        BigramCounter counter = new BigramCounter(type);
+	        try {
+	            for (int i = 0; i < messages.length; ++i)
 	            {
-
-	            	line = cleanLine(line);
-	            	
-	            	
-	                StringTokenizer st = new StringTokenizer(line);         // parse it into words
-	       
-	                while (st.hasMoreTokens())                  // while there are stille words left..
-	                {
-	                	currentWord = st.nextToken();				
-	                    if(!lastWord.equals("")) addBigram(lastWord + " " + currentWord, type);                  // add them to the vocabulary
-	                    lastWord = currentWord;
-	                }
-	                lastWord = "";
-	         
+	                reader.read(messages[i], counter);               // the bigram sinks start over on every line
 	            }
-
-	            in.close();
+	        } catch (UncheckedIOException e) {
+	            throw e.getCause();                         // a run could not be spilled
 	        }
 	    }
 	    
@@ -175,172 +267,135 @@ public class BigramBayespam {
 		/// Print the current content of the spam CCL (debug)
 	    private static void printCCLSpam()
 	    {
-	        Double counter;
-
-	        for (Enumeration<String> e = cclSpam.keys() ; e.hasMoreElements() ;)
+	        for (int id = 0; id < ccl.length / 2; ++id)
 	        {   
-	            String word;
-	            
-	            word = e.nextElement();
-	            counter  = cclSpam.get(word);
-	            
-	            System.out.println( word + " | CCL for spam : " + counter );
+	            System.out.println( bigramText(id) + " | CCL for spam : " + ccl[2 * id + 1] );
 	        }
 	    }
 
 		/// Print the current content of the regular CCL (debug)
 	    private static void printCCLRegular()
 	    {
-	        Double counter;
-
-	        for (Enumeration<String> e = cclRegular.keys() ; e.hasMoreElements() ;)
+	        for (int id = 0; id < ccl.length / 2; ++id)
 	        {   
-	            String word;
-	            
-	            word = e.nextElement();
-	            counter  = cclRegular.get(word);
-	            
-	            System.out.println( word + " | CCL for Regular : " + counter );
+	            System.out.println( bigramText(id) + " | CCL for Regular : " + ccl[2 * id] );
 	        }
 	    }
 	    
-	    private static String cleanLine(String line){
-	    	///Below line removes all non alphabet characters, using regex
-	    	line = " " + line.replaceAll("[^a-zA-Z\\s]", "") + " ";            	
-	    	///Below line removes all words that are now smaller then 4, using regex
-	    	line = line.replaceAll("(\\s+([a-zA-Z]{0,"+ minimalWordSize +"}\\s+)+)+"," ");
-	    	///Below line converts remaining string to lowercase
-	    	line = line.toLowerCase();
-	    	return line;
-	    }
-	    
 	    private static void calcPReg(int regular, int spam){
-	    	int totalNr = regular + spam;
-	    	probRegular = (double) regular/totalNr;
+	    	probRegular = SpamCorpus.prior(regular, regular, spam);
 	    }
 	    
 	    private static void calcPSpam(int regular, int spam){
-	    	int totalNr = regular + spam;
-	    	probSpam = (double) spam/totalNr;
+	    	probSpam = SpamCorpus.prior(spam, regular, spam);
 	    }
 	    
 	    private static void countAllWords(){
-	    	 Multiple_Counter counter = new Multiple_Counter();
-	    	 
-	         for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
+	         if ( features != null ){
+	             for (int bucket = 0; bucket < features.buckets(); ++bucket)
+	             {
+	                 totalRegularWords += features.regularCount(bucket);
+	                 totalSpamWords += features.spamCount(bucket);
+	             }
+	             return;
+	         }
+	         for (int id = 0; id < vocab.size(); ++id)
 	         {   
-	             String word;
-	             
-	             word = e.nextElement();
-	             counter  = vocab.get(word);
-	             
-	             totalRegularWords += counter.counter_regular;
-	             totalSpamWords += counter.counter_spam;
+	             totalRegularWords += vocab.regularCount(id);
+	             totalSpamWords += vocab.spamCount(id);
 	         }
 	    }
 	    
-	    private static void calcCCL(){
-	    	Multiple_Counter counter = new Multiple_Counter();
+	    static void calcCCL(){
 	    	 int regular, spam;
-	         Double cclRegularValue, cclSpamValue;
-	    	 for (Enumeration<String> e = vocab.keys() ; e.hasMoreElements() ;)
+	         double cclRegularValue, cclSpamValue;
+	         if ( features != null ){
+	             calcBucketCCL();
+	             return;
+	         }
+	         ccl = new double[2 * vocab.size()];
+	    	 for (int id = 0; id < vocab.size(); ++id)
 	         {   
-	             String word;
-	             
-	             word = e.nextElement();
-	             counter  = vocab.get(word);
-	             
-	             regular = counter.counter_regular;
-	             spam = counter.counter_spam;
+	             regular = vocab.regularCount(id);
+	             spam = vocab.spamCount(id);
 	             
 	             if(regular != 0){
 	            	cclRegularValue = (double) regular/totalRegularWords;
 	             }else{
-	            	cclRegularValue = (double) tuningParameter/(totalRegularWords + totalSpamWords);
+	            	cclRegularValue = tuningParameter/(totalRegularWords + totalSpamWords);
 	             }
 	             if(spam != 0){
 	            	 cclSpamValue = (double) spam/totalSpamWords;
 	             }else{
-	            	 cclSpamValue = (double) tuningParameter/(totalRegularWords + totalSpamWords);
+	            	 cclSpamValue = tuningParameter/(totalRegularWords + totalSpamWords);
 	             }	
 	             
 	             cclSpamValue = Math.log10(cclSpamValue);
 	             cclRegularValue = Math.log10(cclRegularValue);
 	            
-	             cclRegular.put(word, cclRegularValue);
-	             cclSpam.put(word, cclSpamValue);
+	             ccl[2 * id] = cclRegularValue;
+	             ccl[2 * id + 1] = cclSpamValue;
 	             
 	         }
 	    }
 	    
-	    private static void classifyMessage(File f, MessageType type) throws IOException{ 
-	    	FileInputStream i_s = new FileInputStream(f);
-	         BufferedReader in = new BufferedReader(new InputStreamReader(i_s));
-	         String line;
-	         String word, lastWord = "";
-	         MessageType tag;
-	         
-	         ///Posteri of regular and spam are initialized with the probabilities
-	         double posteriRegular = probRegular;	
-	         double posteriSpam = probSpam;
-	         
-	         while ((line = in.readLine()) != null)                      // read a line
+	    ///The CCLs of every used bucket in the hashed feature mode, the same way as for the bigrams
+	    private static void calcBucketCCL(){
+	         int regular, spam;
+	         double cclRegularValue, cclSpamValue;
+	         bucketCCL = new double[2 * features.buckets()];
+	         for (int bucket = 0; bucket < features.buckets(); ++bucket)
 	         {
-
-	         	line = cleanLine(line);
-	         	
-	             StringTokenizer st = new StringTokenizer(line);         // parse it into words
-	             while (st.hasMoreTokens())                  // while there are still words left..
-	             {
-	            	word = st.nextToken();
-	            	if(!lastWord.equals("")){
-		            	if(cclRegular.get(lastWord + " " + word) != null){
-		            		 posteriRegular += cclRegular.get(lastWord + " " + word); 
-		            	 }
-		            	 if(cclSpam.get(lastWord + " " + word) != null){
-		            		 posteriSpam += cclSpam.get(lastWord + " " + word);
-		            	 }
-		             }
-	            	lastWord = word;
+	             regular = features.regularCount(bucket);
+	             spam = features.spamCount(bucket);
+	             if ( regular == 0 && spam == 0 ){
+	                 continue;                              // never used (or filtered), scored as an unseen bigram
 	             }
-	             lastWord = "";
-	         } 
-
-	         if(posteriRegular > posteriSpam){
-	        	 tag = MessageType.NORMAL;
-	        	 if(type.equals(tag)){
-	        		 truePositive++;
-	        	 }else{
-	        		 falsePositive++;
-	        	 }
-	         }else{
-	        	 tag = MessageType.SPAM;
-	        	 if(type.equals(tag)){
-	        		 trueNegative++;
-	        	 }else{
-	        		 falseNegative++;
-	        	 }
-	         }	         
-	         in.close();
+	             
+	             if(regular != 0){
+	            	cclRegularValue = (double) regular/totalRegularWords;
+	             }else{
+	            	cclRegularValue = tuningParameter/(totalRegularWords + totalSpamWords);
+	             }
+	             if(spam != 0){
+	            	 cclSpamValue = (double) spam/totalSpamWords;
+	             }else{
+	            	 cclSpamValue = tuningParameter/(totalRegularWords + totalSpamWords);
+	             }
+	             
+	             bucketCCL[2 * bucket] = Math.log10(cclRegularValue);
+	             bucketCCL[2 * bucket + 1] = Math.log10(cclSpamValue);
+	         }
+	    }
+	    
+	    ///Replaces the bigram counts and CCLs by an off-heap table, the word dictionary stays to find the bigrams
+	    private static void moveOffHeap()
+	    {
+	        offHeap = OffHeapBigramTable.of(vocab, ccl);
+	        vocab = new LongCountMap();
+	        ccl = new double[0];
+	    }
+	    
+	    ///The log odds (posteriRegular - posteriSpam) of a message, it is classified regular when they are above 0
+	    static double scoreMessage(File f) throws IOException
+	    {
+	        MessageScore score = new MessageScore();
+	        reader.read(f, score);
+	        return score.posteriRegular - score.posteriSpam;
+	    }
+	    
+	    private static void classifyMessage(File f, MessageType type) throws IOException{ 
+	         confusion.add(scoreMessage(f), type == MessageType.NORMAL);
 	    }
 	    
 	    
 	    /// List the regular and spam messages as one giant set of test messages to be classified
 	    private static void listTest(File dir_location) throws IOException
 	    {
-	        // List all files in the directory passed
-	        File[] dir_listing = dir_location.listFiles();
+	        SpamCorpus test = SpamCorpus.test(dir_location);
+	        File[] regularListing = test.regular;
+	        File[] spamListing = test.spam;
 
-	        // Check that there are 2 subdirectories
-	        if ( dir_listing.length != 2 )
-	        {
-	            System.out.println( "- Error: specified directory does not contain two subdirectories.\n" );
-	            Runtime.getRuntime().exit(0);
-	        }
-	        
-	        File[] regularListing = dir_listing[0].listFiles(); 	///We know this is the regular folder
-	        File[] spamListing = dir_listing[1].listFiles();	///We know this is the spam folder
-	        
 	        for(File listing : regularListing){
 	        	classifyMessage(listing, MessageType.NORMAL);
 	        }        
@@ -351,20 +406,19 @@ public class BigramBayespam {
 	    }
 
 
-	   
-	    public static void main(String[] args)
+	    ///Reads the training directory into a new vocabulary and calculates the probabilities and word totals, calcCCL
+	    ///has to follow before anything is classified. Everything from an earlier training run is thrown away.
+	    static void countTrainingSet(File dir_location)
 	    throws IOException
 	    {
-	        // Location of the directory (the path) taken from the cmd line (first arg)
-	        File dir_location = new File( args[0] );
+	        words = new TokenDictionary();
+	        vocab = memoryBudget > 0 ? new LongCountMap(spillCapacity()) : new LongCountMap();
+	        spilled = memoryBudget > 0 ? new SpilledCounts(vocab) : null;
+	        spilledRuns = 0;
+	        features = hashBuckets > 0 ? new HashedFeatures(hashBuckets) : null;
+	        totalRegularWords = 0;
+	        totalSpamWords = 0;
 	        
-	        // Check if the cmd line arg is a directory
-	        if ( !dir_location.isDirectory() )
-	        {
-	            System.out.println( "- Error: cmd line arg not a directory.\n" );
-	            Runtime.getRuntime().exit(0);
-	        }
-
 	        // Initialize the regular and spam lists
 	        listDirs(dir_location);
 
@@ -380,8 +434,84 @@ public class BigramBayespam {
 	        calcPSpam(listing_regular.length, listing_spam.length);
 	        
 	        countAllWords();
+	    }
+	   
+	    ///The number of bigrams the vocabulary holds within the memory budget, a power of two so the map never grows
+	    private static int spillCapacity()
+	    {
+	        long bigrams = Math.max(1024, Math.min(1 << 30, memoryBudget / bytesPerBigram));
+	        return Integer.highestOneBit((int) bigrams);
+	    }
+	    
+	    ///A number of bytes with an optional k, m or g suffix, such as 512m
+	    private static long parseBytes(String value)
+	    {
+	        char unit = Character.toLowerCase(value.charAt(value.length() - 1));
+	        int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : 0;
+	        return Long.parseLong(shift == 0 ? value : value.substring(0, value.length() - 1)) << shift;
+	    }
+	   
+	    ///Reads the optional settings that follow the directories on the cmd line
+	    private static void parseOptions(String[] args, int first)
+	    {
+	        for (int i = first; i < args.length; ++i)
+	        {
+	            if ( args[i].equals("-hashBuckets") && i + 1 < args.length ){
+	                hashBuckets = Integer.parseInt(args[++i]);
+	            } else if ( args[i].equals("-memoryBudget") && i + 1 < args.length ){
+	                memoryBudget = parseBytes(args[++i]);
+	            } else if ( args[i].equals("-offHeap") ){
+	                offHeapModel = true;
+	            } else {
+	                System.out.println( "- Error: unknown option " + args[i] + "\n" );
+	                Runtime.getRuntime().exit(0);
+	            }
+	        }
+	        if ( hashBuckets > 0 && memoryBudget > 0 )
+	        {
+	            System.out.println( "- Error: -hashBuckets already bounds the memory, it can not be combined with -memoryBudget.\n" );
+	            Runtime.getRuntime().exit(0);
+	        }
+	        if ( hashBuckets > 0 && offHeapModel )
+	        {
+	            System.out.println( "- Error: a model with hashed features can not be moved off the heap.\n" );
+	            Runtime.getRuntime().exit(0);
+	        }
+	    }
+	   
+	    public static void main(String[] args)
+	    throws IOException
+	    {
+	        // Optional settings (-hashBuckets N counts the bigrams in N hashed buckets instead of keeping every bigram,
+	        // -memoryBudget N[k|m|g] spills the bigram counts to disk whenever they fill N bytes and merges them at the end,
+	        // -offHeap keeps the bigrams and their CCLs outside the heap once they are calculated, for scoring only)
+	        parseOptions(args, 2);
+	        
+	        // Location of the directory (the path) taken from the cmd line (first arg)
+	        File dir_location = new File( args[0] );
+	        
+	        // Check if the cmd line arg is a directory
+	        if ( !dir_location.isDirectory() )
+	        {
+	            System.out.println( "- Error: cmd line arg not a directory.\n" );
+	            Runtime.getRuntime().exit(0);
+	        }
+
+	        countTrainingSet(dir_location);
 	        
 	        calcCCL();
+	        
+	        if ( features != null ){
+	            System.out.println(features.report());
+	        }
+	        if ( spilledRuns > 0 ){
+	            System.out.println("Spilled bigram counts: " + spilledRuns + " runs of at most " + spillCapacity()
+	                + " bigrams merged into " + vocab.size() + " bigrams");
+	        }
+	        if ( offHeapModel ){
+	            moveOffHeap();
+	            System.out.println("Off-heap bigram table: " + offHeap.size() + " bigrams in " + offHeap.bytes() / 1024 + " KB");
+	        }
 	
 	        // Location of the directory (the path) taken from the cmd line (second arg)
 	        File dir_messages = new File( args[1] );
@@ -397,20 +527,6 @@ public class BigramBayespam {
 	        listTest(dir_messages); 
 	        
 	        ///output the confusion matrix
-	        System.out.println("True Positvie count: " + truePositive);
-	        System.out.println("False Postive count: " + falsePositive);
-	        System.out.println("True Negative count: " + trueNegative);
-	        System.out.println("False Negative count: " + falseNegative);
-	     
-	        
-	        int total = truePositive + falseNegative + trueNegative + falsePositive;
-	        double incorrectClassified = (double) (falsePositive+falseNegative)/total;
-	        double correctClassified = (double) (truePositive+trueNegative)/total;
-	        double correctClassifiedSpam = (double) (trueNegative)/(trueNegative+falsePositive);
-	        double correctClassifiedRegular = (double) (truePositive)/(truePositive+falseNegative);
-	        System.out.println("Total Correct classified: " + correctClassified*100 + "%");
-	        System.out.println("Total Incorrect classified: " + incorrectClassified*100 + "%");
-	        System.out.println("Correct classified spam: " + correctClassifiedSpam*100 + "%");
-	        System.out.println("Correct classified regular: " + correctClassifiedRegular*100 + "%");
+	        confusion.print();
 	    }
 }
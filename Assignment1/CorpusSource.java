@@ -0,0 +1,239 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Messages that do not come one per file from a directory tree: they are streamed out of a zip archive or split out
+// of mbox files, without extracting anything to disk. A corpus is named on the cmd line as
+//   <archive>.zip[!<folder in the archive>]   every entry below the folder, e.g. spam-filter.zip!spam-filter/train
+//   <file>.mbox                             one mbox file
+//   <directory>                             a directory of mbox files (and no subdirectories)
+// The class of a message is taken from its path: the first folder below the corpus folder, or the name of the mbox
+// file without extension, is "spam" for spam and "regular", "normal" or "ham" for regular messages (SpamCorpus.typeOf,
+// which also labels the subdirectories of a directory corpus). Other entries,
+// such as a README next to the folders, are skipped. An entry of a zip archive that ends in .mbox is split too.
+//
+// In an mbox file every message starts with a line "From " (at the start of the file or of a line), that line itself
+// is not part of the message. Lines in a message that start with "From " are escaped as ">From "; the '>' is not a
+// letter, so the tokenizer gives the same words for the escaped line.
+// A CorpusSource holds a buffer and must not be shared between threads.
+public class CorpusSource implements Closeable
+{
+    // Receives the messages of a corpus one by one, body holds the message between its position and limit and is
+    // only valid during the call
+    public interface MessageVisitor
+    {
+        void message(boolean spam, ByteBuffer body) throws IOException;
+    }
+
+    private static final byte[] fromLine = { 'F', 'r', 'o', 'm', ' ' };
+
+    private final ZipFile archive;	///Null for mbox files
+    private final String folder;	///The folder in the archive, "" or ending in '/'
+    private final File[] mboxFiles;
+    private byte[] data = new byte[64 * 1024];	///Reused for every entry and every part of an mbox file
+
+    private CorpusSource(ZipFile archive, String folder, File[] mboxFiles)
+    {
+        this.archive = archive;
+        this.folder = folder;
+        this.mboxFiles = mboxFiles;
+    }
+
+    // Whether the cmd line argument names a corpus this class reads, instead of a directory with two subdirectories
+    public static boolean isCorpus(File path)
+    {
+        String name = path.getPath();
+        if ( name.endsWith(".zip") || name.contains(".zip!") || name.endsWith(".mbox") ){
+            return true;
+        }
+        return path.isDirectory() && mboxFiles(path).length > 0;
+    }
+
+    public static CorpusSource open(File path) throws IOException
+    {
+        String name = path.getPath();
+        int separator = name.indexOf(".zip!");
+        if ( separator >= 0 || name.endsWith(".zip") )
+        {
+            String archive = separator >= 0 ? name.substring(0, separator + 4) : name;
+            String folder = separator >= 0 ? name.substring(separator + 5).replace(File.separatorChar, '/') : "";
+            while ( folder.startsWith("/") ){
+                folder = folder.substring(1);
+            }
+            if ( !folder.isEmpty() && !folder.endsWith("/") ){
+                folder += "/";
+            }
+            return new CorpusSource(new ZipFile(archive), folder, null);
+        }
+        if ( path.isDirectory() ){
+            return new CorpusSource(null, "", mboxFiles(path));
+        }
+        return new CorpusSource(null, "", new File[] { path });
+    }
+
+    // The mbox files of a directory in name order, none when it also holds directories
+    private static File[] mboxFiles(File directory)
+    {
+        File[] files = directory.listFiles();
+        if ( files == null ){
+            return new File[0];
+        }
+        for (File file : files){
+            if ( file.isDirectory() ){
+                return new File[0];
+            }
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    // Passes every message of the corpus to the visitor, in the order of the archive or of the mbox files
+    public void forEach(MessageVisitor visitor) throws IOException
+    {
+        if ( archive == null )
+        {
+            for (File file : mboxFiles)
+            {
+                Boolean spam = SpamCorpus.typeOf(file.getName());
+                if ( spam == null ){
+                    continue;
+                }
+                InputStream in = new FileInputStream(file);
+                try {
+                    splitMbox(in, spam, visitor);
+                } finally {
+                    in.close();
+                }
+            }
+            return;
+        }
+
+        for (Enumeration<? extends ZipEntry> entries = archive.entries(); entries.hasMoreElements(); )
+        {
+            ZipEntry entry = entries.nextElement();
+            if ( entry.isDirectory() || !entry.getName().startsWith(folder) ){
+                continue;
+            }
+            String path = entry.getName().substring(folder.length());
+            int slash = path.indexOf('/');
+            Boolean spam = SpamCorpus.typeOf(slash >= 0 ? path.substring(0, slash) : path);
+            if ( spam == null || (slash < 0 && !path.endsWith(".mbox")) ){
+                continue;                               // not below a class folder and not a class mbox file
+            }
+
+            InputStream in = archive.getInputStream(entry);
+            try {
+                if ( path.endsWith(".mbox") ){
+                    splitMbox(in, spam, visitor);
+                } else {
+                    int length = readFully(in, entry.getSize());
+                    visitor.message(spam, ByteBuffer.wrap(data, 0, length));
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    public void close() throws IOException
+    {
+        if ( archive != null ){
+            archive.close();
+        }
+    }
+
+    // Reads the whole stream into data and returns its length, size is only a hint (-1 when it is not known)
+    private int readFully(InputStream in, long size) throws IOException
+    {
+        if ( size > data.length ){
+            data = new byte[(int) size];
+        }
+        int length = 0;
+        for (int n; (n = in.read(data, length, data.length - length)) > 0; )
+        {
+            length += n;
+            if ( length == data.length ){
+                data = Arrays.copyOf(data, 2 * data.length);
+            }
+        }
+        return length;
+    }
+
+    // Streams an mbox file through data and passes every message to the visitor as soon as the "From " line of the
+    // next message (or the end) is read, so only the message that is being read has to fit in memory
+    private void splitMbox(InputStream in, boolean spam, MessageVisitor visitor) throws IOException
+    {
+        int length = 0;
+        int messageStart = 0;	///Start of the message that is being read, text before the first "From " line too
+        int lineStart = 0;
+        int scanned = 0;
+        while ( true )
+        {
+            if ( length == data.length )
+            {
+                if ( messageStart == 0 ){
+                    data = Arrays.copyOf(data, 2 * data.length);
+                } else {
+                    ///Drop what was passed on already
+                    System.arraycopy(data, messageStart, data, 0, length - messageStart);
+                    length -= messageStart;
+                    lineStart -= messageStart;
+                    scanned -= messageStart;
+                    messageStart = 0;
+                }
+            }
+            int n = in.read(data, length, data.length - length);
+            if ( n < 0 ){
+                break;
+            }
+            length += n;
+
+            for (; scanned < length; ++scanned)
+            {
+                if ( data[scanned] != '\n' ){
+                    continue;
+                }
+                if ( isFromLine(lineStart, scanned + 1) )
+                {
+                    emit(messageStart, lineStart, spam, visitor);
+                    messageStart = scanned + 1;
+                }
+                lineStart = scanned + 1;
+            }
+        }
+        if ( lineStart < length && isFromLine(lineStart, length) ){
+            emit(messageStart, lineStart, spam, visitor);
+            return;                                     // a "From " line without a message behind it
+        }
+        emit(messageStart, length, spam, visitor);
+    }
+
+    private boolean isFromLine(int from, int to)
+    {
+        if ( to - from < fromLine.length ){
+            return false;
+        }
+        for (int i = 0; i < fromLine.length; ++i){
+            if ( data[from + i] != fromLine[i] ){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Passes a message on, unless it is empty or only whitespace (such as the start of a file before its first
+    // "From " line)
+    private void emit(int from, int to, boolean spam, MessageVisitor visitor) throws IOException
+    {
+        for (int i = from; i < to; ++i)
+        {
+            if ( data[i] > ' ' ){
+                visitor.message(spam, ByteBuffer.wrap(data, from, to - from));
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// The word counts of one shard of a training set, written by a training worker and merged into the vocabulary by
+// Bayespam. The layout follows ModelFile (big endian, read back by memory mapping):
+//   int magic, int version, int regularMessages, int spamMessages, int number of words n
+//   int[n] regular counts, int[n] spam counts, int[n] word lengths, the words as one block of ASCII bytes
+// The words are in the order they were first read, so merging the shards of consecutive ranges of messages in order
+// gives every word the ID it gets when all messages are read by one process.
+public class CountFile
+{
+    private static final int magic = 0x42535043;	///"BSPC"
+    private static final int version = 1;
+
+    int regularMessages;
+    int spamMessages;
+    TokenDictionary vocab;
+
+    public void save(File file) throws IOException
+    {
+        int n = vocab.size();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        try {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(regularMessages);
+            out.writeInt(spamMessages);
+            out.writeInt(n);
+            for (int id = 0; id < n; ++id){
+                out.writeInt(vocab.regularCount(id));
+            }
+            for (int id = 0; id < n; ++id){
+                out.writeInt(vocab.spamCount(id));
+            }
+            for (int id = 0; id < n; ++id){
+                out.writeInt(vocab.word(id).length());
+            }
+            for (int id = 0; id < n; ++id){
+                out.writeBytes(vocab.word(id));	// the tokenizer only produces ASCII
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static CountFile load(File file) throws IOException
+    {
+        FileInputStream i_s = new FileInputStream(file);
+        try {
+            FileChannel channel = i_s.getChannel();
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if ( in.getInt() != magic || in.getInt() != version ){
+                throw new IOException(file + " is not a Bayespam count file");
+            }
+            CountFile counts = new CountFile();
+            counts.regularMessages = in.getInt();
+            counts.spamMessages = in.getInt();
+            int n = in.getInt();
+
+            int[] regular = new int[n];
+            int[] spam = new int[n];
+            int[] lengths = new int[n];
+            in.asIntBuffer().get(regular);
+            in.position(in.position() + 4 * n);
+            in.asIntBuffer().get(spam);
+            in.position(in.position() + 4 * n);
+            in.asIntBuffer().get(lengths);
+            in.position(in.position() + 4 * n);
+
+            byte[] words = new byte[in.remaining()];
+            in.get(words);
+
+            counts.vocab = new TokenDictionary(n);
+            int offset = 0;
+            for (int id = 0; id < n; ++id)
+            {
+                counts.vocab.addCount(counts.vocab.add(new String(words, offset, lengths[id], StandardCharsets.ISO_8859_1)), regular[id], spam[id]);
+                offset += lengths[id];
+            }
+            return counts;
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " is truncated");
+        } finally {
+            i_s.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+// Approximate counts of words in a fixed amount of memory: every word increments one counter in each of a few rows,
+// picked by a different hash per row, and its count is estimated by the smallest of those counters. Collisions can
+// only make an estimate too high, never too low. Only the smallest counters of a word are incremented (conservative
+// update), which keeps the estimates of rare words close to their real counts.
+public class CountMinSketch
+{
+    private static final int depth = 4;
+
+    private final int width;
+    private final int mask;
+    private final int[] counters;	///Row r is counters[r * width] up to counters[(r + 1) * width]
+
+    // The width (counters per row) is rounded up to a power of two
+    public CountMinSketch(int width)
+    {
+        int capacity = 16;
+        while ( capacity < width ){
+            capacity <<= 1;
+        }
+        this.width = capacity;
+        mask = capacity - 1;
+        counters = new int[depth * capacity];
+    }
+
+    // The memory of the counters in bytes
+    public long bytes()
+    {
+        return 4L * counters.length;
+    }
+
+    // Counts one more occurrence of the word in the first length chars and returns its new estimate
+    public int add(char[] chars, int length)
+    {
+        int hash = hash(chars, length);
+        int step = step(chars, length);
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; ++row){
+            estimate = Math.min(estimate, counters[index(row, hash, step)]);
+        }
+        for (int row = 0; row < depth; ++row)
+        {
+            int index = index(row, hash, step);
+            if ( counters[index] == estimate ){
+                counters[index] = estimate + 1;
+            }
+        }
+        return estimate + 1;
+    }
+
+    // The estimated number of occurrences of the word in the first length chars
+    public int estimate(char[] chars, int length)
+    {
+        int hash = hash(chars, length);
+        int step = step(chars, length);
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; ++row){
+            estimate = Math.min(estimate, counters[index(row, hash, step)]);
+        }
+        return estimate;
+    }
+
+    // The rows use the hashes hash + row * step (double hashing)
+    private int index(int row, int hash, int step)
+    {
+        return row * width + ((hash + row * step) & mask);
+    }
+
+    // The String hash code, mixed like TokenDictionary does
+    private static int hash(char[] chars, int length)
+    {
+        int hash = 0;
+        for (int i = 0; i < length; ++i){
+            hash = 31 * hash + chars[i];
+        }
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    // FNV-1a, odd so every row differs
+    private static int step(char[] chars, int length)
+    {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; ++i)
+        {
+            hash ^= chars[i];
+            hash *= 0x01000193;
+        }
+        return hash | 1;
+    }
+}
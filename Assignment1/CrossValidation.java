@@ -0,0 +1,286 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// K-fold cross-validation of the Bayespam model over a grid of tuning parameters (the weight of a word that was not
+// seen in a class) and priors, to choose them by measurement instead of by hand.
+// The training directory is tokenized once, every message becomes an array of word IDs. The counts of a fold are the
+// counts of the whole directory minus the counts of the messages it holds out, so no fold is trained from scratch.
+// Every fold and every parameter value is evaluated as a separate task on -threads threads.
+//
+// Priors: "empirical" adds the fraction of regular (spam) messages to the posteriors like Bayespam does, "log" adds
+// the log10 of that fraction and "uniform" adds nothing.
+//
+// Usage: java CrossValidation <train dir> [-folds K] [-tuning 0.005,0.01,0.02,...] [-priors empirical,log,uniform]
+//                             [-threads N] [-seed N]
+// Prints a table with the mean and standard deviation of the accuracy over the folds for every combination.
+public class CrossValidation
+{
+    private static int folds = 10;
+    private static double[] tuningParameters = { 0.001, 0.005, 0.01, 0.02, 0.05, 0.1, 0.2, 0.5, 1 };
+    private static String[] priors = { "empirical" };
+    private static int threads = Runtime.getRuntime().availableProcessors();
+    private static long seed = 1;
+
+    // The tokenized training set: the word IDs of every message, its type and the fold that holds it out
+    private static TokenDictionary words = new TokenDictionary();
+    private static int[][] messages;
+    private static boolean[] spam;
+    private static int[] fold;
+
+    // The counts of every word in the whole training set
+    private static int[] counter_regular;
+    private static int[] counter_spam;
+
+    // Collects the word IDs of one message
+    static class IdCollector implements Tokenizer.TokenSink
+    {
+        int[] ids = new int[256];
+        int length = 0;
+
+        public void token(char[] chars, int length)
+        {
+            if ( this.length == ids.length ){
+                ids = Arrays.copyOf(ids, 2 * ids.length);
+            }
+            ids[this.length++] = words.add(chars, length);
+        }
+
+        public void endOfLine()
+        {
+        }
+    }
+
+    // The training counts of one fold: the whole training set without the messages the fold holds out
+    static class FoldCounts
+    {
+        final int[] regular;
+        final int[] spam;
+        long totalRegularWords = 0;
+        long totalSpamWords = 0;
+        int regularMessages = 0;
+        int spamMessages = 0;
+
+        FoldCounts(int heldOut)
+        {
+            regular = counter_regular.clone();
+            spam = counter_spam.clone();
+            for (int m = 0; m < messages.length; ++m)
+            {
+                if ( fold[m] != heldOut ){
+                    if ( CrossValidation.spam[m] ){
+                        ++spamMessages;
+                    } else {
+                        ++regularMessages;
+                    }
+                    continue;
+                }
+                int[] counts = CrossValidation.spam[m] ? spam : regular;
+                for (int id : messages[m]){
+                    --counts[id];
+                }
+            }
+            for (int id = 0; id < regular.length; ++id)
+            {
+                totalRegularWords += regular[id];
+                totalSpamWords += spam[id];
+            }
+        }
+    }
+
+    // Reads the training directory into word ID arrays and counts every word
+    private static void tokenize(File dir_location) throws IOException
+    {
+        SpamCorpus corpus = SpamCorpus.training(dir_location);     // the same choice of the regular folder as Bayespam
+        File[] listing_regular = corpus.regular, listing_spam = corpus.spam;
+
+        messages = new int[listing_regular.length + listing_spam.length][];
+        spam = new boolean[messages.length];
+        MessageReader reader = new MessageReader(Bayespam.newTokenizer());
+        IdCollector collector = new IdCollector();
+        for (int m = 0; m < messages.length; ++m)
+        {
+            spam[m] = m >= listing_regular.length;
+            collector.length = 0;
+            reader.read(spam[m] ? listing_spam[m - listing_regular.length] : listing_regular[m], collector);
+            messages[m] = Arrays.copyOf(collector.ids, collector.length);
+        }
+
+        counter_regular = new int[words.size()];
+        counter_spam = new int[words.size()];
+        for (int m = 0; m < messages.length; ++m)
+        {
+            int[] counts = spam[m] ? counter_spam : counter_regular;
+            for (int id : messages[m]){
+                ++counts[id];
+            }
+        }
+    }
+
+    // Deals the messages of each type round robin over the folds, in a random order
+    private static void assignFolds()
+    {
+        fold = new int[messages.length];
+        List<Integer> regular = new ArrayList<Integer>(), spammy = new ArrayList<Integer>();
+        for (int m = 0; m < messages.length; ++m){
+            (spam[m] ? spammy : regular).add(m);
+        }
+        Random random = new Random(seed);
+        Collections.shuffle(regular, random);
+        Collections.shuffle(spammy, random);
+        int next = 0;
+        for (int m : regular){
+            fold[m] = next++ % folds;
+        }
+        for (int m : spammy){
+            fold[m] = next++ % folds;
+        }
+    }
+
+    // The fraction of the held out messages of a fold that is classified correctly with the given parameters
+    private static double evaluate(FoldCounts counts, int heldOut, double tuningParameter, String prior)
+    {
+        ///The CCLs, the same way as Bayespam.calcWordCCL does it
+        int n = counts.regular.length;
+        double[] ccl = new double[2 * n];
+        double unseen = Math.log10(tuningParameter / (counts.totalRegularWords + counts.totalSpamWords));
+        for (int id = 0; id < n; ++id)
+        {
+            int regular = counts.regular[id];
+            int spam = counts.spam[id];
+            ccl[2 * id] = regular != 0 ? Math.log10((double) regular / counts.totalRegularWords) : unseen;
+            ccl[2 * id + 1] = spam != 0 ? Math.log10((double) spam / counts.totalSpamWords) : unseen;
+        }
+
+        double probRegular = SpamCorpus.prior(counts.regularMessages, counts.regularMessages, counts.spamMessages);
+        double priorRegular = 0, priorSpam = 0;
+        if ( prior.equals("empirical") ){
+            priorRegular = probRegular;
+            priorSpam = 1 - probRegular;
+        } else if ( prior.equals("log") ){
+            priorRegular = Math.log10(probRegular);
+            priorSpam = Math.log10(1 - probRegular);
+        }
+
+        int correct = 0, total = 0;
+        for (int m = 0; m < messages.length; ++m)
+        {
+            if ( fold[m] != heldOut ){
+                continue;
+            }
+            double posteriRegular = priorRegular;
+            double posteriSpam = priorSpam;
+            for (int id : messages[m])
+            {
+                if ( counts.regular[id] != 0 || counts.spam[id] != 0 ){    // only in held out messages: not in the vocabulary
+                    posteriRegular += ccl[2 * id];
+                    posteriSpam += ccl[2 * id + 1];
+                }
+            }
+            if ( (posteriRegular > posteriSpam) != spam[m] ){
+                ++correct;
+            }
+            ++total;
+        }
+        return total == 0 ? Double.NaN : (double) correct / total;
+    }
+
+    private static void parseOptions(String[] args, int first)
+    {
+        for (int i = first; i < args.length; ++i)
+        {
+            if ( args[i].equals("-folds") && i + 1 < args.length ){
+                folds = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-tuning") && i + 1 < args.length ){
+                String[] values = args[++i].split(",");
+                tuningParameters = new double[values.length];
+                for (int v = 0; v < values.length; ++v){
+                    tuningParameters[v] = Double.parseDouble(values[v]);
+                }
+            } else if ( args[i].equals("-priors") && i + 1 < args.length ){
+                priors = args[++i].split(",");
+            } else if ( args[i].equals("-threads") && i + 1 < args.length ){
+                threads = Integer.parseInt(args[++i]);
+                if ( threads <= 0 ){
+                    threads = Runtime.getRuntime().availableProcessors();
+                }
+            } else if ( args[i].equals("-seed") && i + 1 < args.length ){
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.out.println( "- Error: unknown option " + args[i] + "\n" );
+                Runtime.getRuntime().exit(0);
+            }
+        }
+        for (String prior : priors)
+        {
+            if ( !prior.equals("empirical") && !prior.equals("log") && !prior.equals("uniform") ){
+                System.out.println( "- Error: unknown prior " + prior + "\n" );
+                Runtime.getRuntime().exit(0);
+            }
+        }
+    }
+
+    public static void main(String[] args)
+    throws IOException, InterruptedException
+    {
+        if ( args.length < 1 || !new File( args[0] ).isDirectory() )
+        {
+            System.out.println( "- Error: cmd line arg not a directory.\n" );
+            Runtime.getRuntime().exit(0);
+        }
+        parseOptions(args, 1);
+
+        tokenize(new File( args[0] ));
+        folds = Math.max(2, Math.min(folds, messages.length));
+        assignFolds();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ///First the counts of every fold, then every fold with every combination of parameters
+            List<Future<FoldCounts>> counts = new ArrayList<Future<FoldCounts>>();
+            for (int f = 0; f < folds; ++f)
+            {
+                final int heldOut = f;
+                counts.add(executor.submit(() -> new FoldCounts(heldOut)));
+            }
+
+            int combinations = tuningParameters.length * priors.length;
+            List<Future<Double>> accuracies = new ArrayList<Future<Double>>(combinations * folds);
+            for (int c = 0; c < combinations; ++c)
+            {
+                for (int f = 0; f < folds; ++f)
+                {
+                    final FoldCounts foldCounts = counts.get(f).get();
+                    final int heldOut = f;
+                    final double tuningParameter = tuningParameters[c / priors.length];
+                    final String prior = priors[c % priors.length];
+                    accuracies.add(executor.submit(() -> evaluate(foldCounts, heldOut, tuningParameter, prior)));
+                }
+            }
+
+            System.out.println(folds + "-fold cross-validation of " + messages.length + " messages, " + words.size() + " words");
+            System.out.println("tuning\tpriors\taccuracy\tstddev");
+            for (int c = 0; c < combinations; ++c)
+            {
+                double sum = 0, squares = 0;
+                for (int f = 0; f < folds; ++f)
+                {
+                    double accuracy = accuracies.get(c * folds + f).get();
+                    sum += accuracy;
+                    squares += accuracy * accuracy;
+                }
+                double mean = sum / folds;
+                double deviation = Math.sqrt(Math.max(0, squares / folds - mean * mean));
+                System.out.println(String.format(Locale.ROOT, "%s\t%s\t%.2f%%\t%.2f%%",
+                    tuningParameters[c / priors.length], priors[c % priors.length], 100 * mean, 100 * deviation));
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.Locale;
+
+// A vocabulary of fixed size for the hashed feature mode: every word is hashed into one of a fixed number of buckets
+// and only the regular and spam count of the bucket are kept, never the word itself. The memory is set when the
+// table is made and does not grow with the number of different words, at the cost of words that share a bucket
+// sharing their counts as well.
+// Collisions are measured with a second, independent hash of the word (a fingerprint): the first word that lands in a
+// bucket owns it, every later word with another fingerprint in that bucket is a collision. The statistics describe
+// the buckets as they were counted: filter empties buckets that are no longer randomly occupied, so it keeps the
+// number of used buckets from before and the estimates are made from that.
+public class HashedFeatures
+{
+    private final int mask;
+    private final int[] counter_regular;
+    private final int[] counter_spam;
+    private final int[] fingerprints;	///Fingerprint of the word that owns the bucket, 0 for an empty bucket
+
+    private int used = 0;
+    private int usedWhileCounting = -1;	///The used buckets when filter was first called, -1 before that
+    private long additions = 0;
+    private long collisions = 0;	///Additions of a word to a bucket owned by another word
+
+    // The number of buckets is rounded up to a power of two
+    public HashedFeatures(int buckets)
+    {
+        int capacity = 16;
+        while ( capacity < buckets ){
+            capacity <<= 1;
+        }
+        mask = capacity - 1;
+        counter_regular = new int[capacity];
+        counter_spam = new int[capacity];
+        fingerprints = new int[capacity];
+    }
+
+    public int buckets()
+    {
+        return mask + 1;
+    }
+
+    public int regularCount(int bucket)
+    {
+        return counter_regular[bucket];
+    }
+
+    public int spamCount(int bucket)
+    {
+        return counter_spam[bucket];
+    }
+
+    // The bucket of the word in the first length chars
+    public int bucket(char[] chars, int length)
+    {
+        int hash = 0;
+        for (int i = 0; i < length; ++i){
+            hash = 31 * hash + chars[i];
+        }
+        hash *= 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    // The bucket of a key made of two packed word hashes, as the bigram model uses
+    public int bucket(long key)
+    {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+
+    // Add to the counters of the bucket of the word in the first length chars
+    public void add(char[] chars, int length, int regular, int spam)
+    {
+        count(bucket(chars, length), fingerprint(chars, length), regular, spam);
+    }
+
+    // Add to the counters of the bucket of a packed key
+    public void add(long key, int regular, int spam)
+    {
+        count(bucket(key), fingerprint(key), regular, spam);
+    }
+
+    private void count(int bucket, int fingerprint, int regular, int spam)
+    {
+        if ( fingerprints[bucket] == 0 ){
+            fingerprints[bucket] = fingerprint;
+            ++used;
+        } else if ( fingerprints[bucket] != fingerprint ){
+            ++collisions;
+        }
+        ++additions;
+        counter_regular[bucket] += regular;
+        counter_spam[bucket] += spam;
+    }
+
+    // Empties every bucket that holds less than minimumCount words in total
+    public void filter(int minimumCount)
+    {
+        if ( usedWhileCounting < 0 ){
+            usedWhileCounting = used;
+        }
+        for (int bucket = 0; bucket <= mask; ++bucket)
+        {
+            if ( fingerprints[bucket] != 0 && counter_regular[bucket] + counter_spam[bucket] < minimumCount ){
+                counter_regular[bucket] = 0;
+                counter_spam[bucket] = 0;
+                fingerprints[bucket] = 0;
+                --used;
+            }
+        }
+    }
+
+    // The number of different words that were counted, estimated from the number of used buckets before any filter
+    // (linear counting): n words thrown at random into m buckets leave about m * e^(-n/m) of them empty
+    public double estimatedWords()
+    {
+        int m = buckets();
+        int counted = usedWhileCounting >= 0 ? usedWhileCounting : used;
+        if ( counted >= m ){
+            return Double.POSITIVE_INFINITY;
+        }
+        return -m * Math.log(1 - (double) counted / m);
+    }
+
+    // While counting: how many buckets were used, how many words that is estimated to be and how many of those share
+    // a bucket, and how many of the words that were added (counting every occurrence) landed in a bucket of another
+    // word. After a filter also how many buckets it kept.
+    public String report()
+    {
+        int counted = usedWhileCounting >= 0 ? usedWhileCounting : used;
+        double words = estimatedWords();
+        double sharedWords = words > 0 ? 1 - counted / words : 0;
+        double sharedAdditions = additions > 0 ? (double) collisions / additions : 0;
+        String estimate = Double.isInfinite(words) ? "too many to estimate" : String.format(Locale.ROOT, "about %.0f", words);
+        String report = String.format(Locale.ROOT, "Hashed features (while counting): %d of %d buckets used, %s words, "
+                + "%.2f%% of the words share a bucket, %.2f%% of the occurrences were counted in the bucket of another word",
+                counted, buckets(), estimate, 100 * sharedWords, 100 * sharedAdditions);
+        if ( usedWhileCounting >= 0 ){
+            report += String.format(Locale.ROOT, "; after filtering %d buckets are kept", used);
+        }
+        return report;
+    }
+
+    // FNV-1a, independent of the String hash that picks the bucket, never 0
+    private static int fingerprint(char[] chars, int length)
+    {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; ++i)
+        {
+            hash ^= chars[i];
+            hash *= 0x01000193;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    // The low half of the MurmurHash3 finalizer, the bucket comes from another multiplication, never 0
+    private static int fingerprint(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        return (int) key == 0 ? 1 : (int) key;
+    }
+}
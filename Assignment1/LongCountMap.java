@@ -0,0 +1,163 @@
+import java.util.Arrays;
+
+// The regular and spam counts of long keys, such as bigrams packed as two word IDs. Like TokenDictionary every key
+// gets a dense int ID in the order the keys were added and the counts are int arrays indexed by that ID, but the keys
+// are primitive longs: no objects are made per key, not even for a new one.
+public class LongCountMap
+{
+    private static final int initialCapacity = 1024;
+
+    // The keys and their counts, indexed by ID
+    private long[] keys;
+    private int[] counter_regular;
+    private int[] counter_spam;
+    private int size = 0;
+
+    // Open addressing table (linear probing) holding ID + 1 for every used slot, 0 is an empty slot
+    private int[] table;
+    private int mask;
+
+    public LongCountMap()
+    {
+        this(initialCapacity);
+    }
+
+    public LongCountMap(int expectedKeys)
+    {
+        int capacity = initialCapacity;
+        while ( capacity < expectedKeys ){
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        counter_regular = new int[capacity];
+        counter_spam = new int[capacity];
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+    }
+
+    // Number of keys in the map, every ID is smaller than this
+    public int size()
+    {
+        return size;
+    }
+
+    public long key(int id)
+    {
+        return keys[id];
+    }
+
+    public int regularCount(int id)
+    {
+        return counter_regular[id];
+    }
+
+    public int spamCount(int id)
+    {
+        return counter_spam[id];
+    }
+
+    // Add to the counters of a key
+    public void addCount(int id, int regular, int spam)
+    {
+        counter_regular[id] += regular;
+        counter_spam[id] += spam;
+    }
+
+    // The ID of a key, or -1 if the key is not in the map
+    public int lookup(long key)
+    {
+        for (int slot = spread(key) & mask; ; slot = (slot + 1) & mask)
+        {
+            int id = table[slot] - 1;
+            if ( id < 0 ){
+                return -1;
+            }
+            if ( keys[id] == key ){
+                return id;
+            }
+        }
+    }
+
+    // The ID of a key, the key is added with zero counts when it is not in the map yet
+    public int add(long key)
+    {
+        int slot = spread(key) & mask;
+        for (; ; slot = (slot + 1) & mask)
+        {
+            int id = table[slot] - 1;
+            if ( id < 0 ){
+                break;
+            }
+            if ( keys[id] == key ){
+                return id;
+            }
+        }
+
+        int id = size++;
+        if ( id == keys.length ){
+            grow();
+            slot = spread(key) & mask;
+            while ( table[slot] != 0 ){
+                slot = (slot + 1) & mask;
+            }
+        }
+        keys[id] = key;
+        table[slot] = id + 1;
+        return id;
+    }
+
+    // Removes every key, the arrays keep their size so a map that is filled again does not grow
+    public void clear()
+    {
+        Arrays.fill(counter_regular, 0, size, 0);
+        Arrays.fill(counter_spam, 0, size, 0);
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    // Number of keys the map holds before its arrays have to grow
+    public int capacity()
+    {
+        return keys.length;
+    }
+
+    // A new map with only the keys that occur at least minimumCount times in total
+    public LongCountMap filter(int minimumCount)
+    {
+        LongCountMap filtered = new LongCountMap(size);
+        for (int i = 0; i < size; ++i)
+        {
+            if ( counter_regular[i] + counter_spam[i] >= minimumCount ){
+                filtered.addCount(filtered.add(keys[i]), counter_regular[i], counter_spam[i]);
+            }
+        }
+        return filtered;
+    }
+
+    // Doubles the arrays and rebuilds the table, the table is kept at most half full
+    private void grow()
+    {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        counter_regular = Arrays.copyOf(counter_regular, capacity);
+        counter_spam = Arrays.copyOf(counter_spam, capacity);
+
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+        for (int id = 0; id < size - 1; ++id)
+        {
+            int slot = spread(keys[id]) & mask;
+            while ( table[slot] != 0 ){
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    // Packed keys differ mostly in the low bits of each half, mix all 64 bits into the slot
+    private static int spread(long key)
+    {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) ^ (int) hash;
+    }
+}
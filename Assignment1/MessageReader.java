@@ -0,0 +1,137 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+// Reads message files and tokenizes their bytes directly, without decoding them to Strings line by line.
+// Small files are read into a buffer that is reused for every file, large files are memory mapped.
+// The tokenizer only keeps ASCII letters and whitespace, and in an ASCII compatible charset every byte above 127
+// decodes to something that is not one of those, so those bytes are simply dropped. For other default charsets the
+// reader falls back to decoding with a BufferedReader.
+// A MessageReader holds a buffer and must not be shared between threads.
+public class MessageReader
+{
+    private static final int mapThreshold = 1 << 20;	///Files of at least this many bytes are memory mapped
+
+    // Whether the bytes of a file can be tokenized without decoding them first
+    private static final boolean byteCompatible = isByteCompatible(Charset.defaultCharset());
+
+    private final Tokenizer tokenizer;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    public MessageReader(Tokenizer tokenizer)
+    {
+        this.tokenizer = tokenizer;
+    }
+
+    // Read the words of one message and pass them to the sink
+    public void read(File message, Tokenizer.TokenSink sink) throws IOException
+    {
+        read(message, sink, Long.MAX_VALUE);
+    }
+
+    // Read the words in the first maxBytes bytes of a message, a word cut off by the limit still counts as a word
+    public void read(File message, Tokenizer.TokenSink sink, long maxBytes) throws IOException
+    {
+        tokenizer.reset();
+        if ( !byteCompatible ){
+            readLines(message, sink, maxBytes);
+            return;
+        }
+        tokenizer.tokenize(load(message, maxBytes), sink);
+    }
+
+    // The first maxBytes bytes of a message file: in the buffer of the reader, which the next load overwrites, or
+    // memory mapped for a large file. Only for charsets where isByteCompatible holds.
+    public ByteBuffer load(File message, long maxBytes) throws IOException
+    {
+        FileInputStream i_s = new FileInputStream( message );
+        try {
+            FileChannel channel = i_s.getChannel();
+            long size = Math.min(channel.size(), maxBytes);
+            if ( size >= mapThreshold ){
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            if ( buffer.capacity() < size ){
+                buffer = ByteBuffer.allocate((int) size);
+            }
+            buffer.clear();
+            buffer.limit((int) size);
+            while ( buffer.hasRemaining() && channel.read(buffer) > 0 ){
+                // read until the buffer holds the whole file
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            i_s.close();
+        }
+    }
+
+    // Whether the messages are tokenized from their bytes, so load can be used
+    public static boolean isByteCompatible()
+    {
+        return byteCompatible;
+    }
+
+    // Read the words of a message that is already in memory, such as one received over a socket
+    public void read(ByteBuffer message, Tokenizer.TokenSink sink) throws IOException
+    {
+        tokenizer.reset();
+        if ( byteCompatible ){
+            tokenizer.tokenize(message, sink);
+            return;
+        }
+        BufferedReader in = new BufferedReader(new StringReader(Charset.defaultCharset().decode(message).toString()));
+        String line;
+        while ((line = in.readLine()) != null && !tokenizer.stopped())
+        {
+            tokenizer.tokenizeLine(line, sink);
+        }
+    }
+
+    // Skips the rest of the message that is being read, for a sink that has seen enough
+    public void stop()
+    {
+        tokenizer.stop();
+    }
+
+    public boolean stopped()
+    {
+        return tokenizer.stopped();
+    }
+
+    // Starts a new message, for tokens that do not come from read (such as those of a TokenCache)
+    public void reset()
+    {
+        tokenizer.reset();
+    }
+
+    // The old way: decode the file with the default charset and tokenize it line by line
+    // (maxBytes counts the decoded chars and line breaks here)
+    private void readLines(File message, Tokenizer.TokenSink sink, long maxBytes) throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream( message )));
+        try {
+            String line;
+            while ((line = in.readLine()) != null && maxBytes > 0 && !tokenizer.stopped())
+            {
+                tokenizer.tokenizeLine(line.length() > maxBytes ? line.substring(0, (int) maxBytes) : line, sink);
+                maxBytes -= line.length() + 1;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Only the charsets below are known to decode ASCII bytes to the same chars and never decode other bytes (or
+    // multi-byte sequences) to ASCII letters or whitespace
+    private static boolean isByteCompatible(Charset charset)
+    {
+        return charset.equals(StandardCharsets.US_ASCII)
+            || charset.equals(StandardCharsets.ISO_8859_1)
+            || charset.equals(StandardCharsets.UTF_8)
+            || charset.name().equals("windows-1252");
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// A trained Bayespam model in a compact binary file, so a classifier can start without retraining.
+// The file is written big endian (DataOutputStream) and read back by memory mapping it:
+//   int magic, int version
+//   double probRegular, double probSpam, int regularMessages, int spamMessages
+//   int totalRegularWords, int totalSpamWords, int number of words n
+//   int[n] regular counts, int[n] spam counts
+//   double[2n] CCLs by ID, regular at 2 * ID and spam at 2 * ID + 1
+//   int[n] word lengths, followed by the words as one block of ASCII bytes
+//   the PerfectHashIndex of the words (see PerfectHashIndex.write), since version 4
+// Every array is read with one bulk get, the words are the only thing that is parsed one by one.
+public class ModelFile
+{
+    private static final int magic = 0x4253504D;	///"BSPM"
+    private static final int version = 4;
+    private static final int oldestVersion = 3;	///Older versions are read too, their index is built when they are loaded
+
+    double probRegular;
+    double probSpam;
+    int regularMessages;	///The message counts behind the probabilities, needed to keep training online
+    int spamMessages;
+    int totalRegularWords;
+    int totalSpamWords;
+    TokenDictionary vocab;
+    double[] ccl;
+    PerfectHashIndex index;	///Null when the file has no index yet
+    OffHeapScoringTable offHeap;	///Only set by loadOffHeap, which leaves vocab and ccl null
+
+    public void save(File file) throws IOException
+    {
+        int n = vocab.size();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        try {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeDouble(probRegular);
+            out.writeDouble(probSpam);
+            out.writeInt(regularMessages);
+            out.writeInt(spamMessages);
+            out.writeInt(totalRegularWords);
+            out.writeInt(totalSpamWords);
+            out.writeInt(n);
+            for (int id = 0; id < n; ++id){
+                out.writeInt(vocab.regularCount(id));
+            }
+            for (int id = 0; id < n; ++id){
+                out.writeInt(vocab.spamCount(id));
+            }
+            for (int i = 0; i < 2 * n; ++i){
+                out.writeDouble(ccl[i]);
+            }
+            for (int id = 0; id < n; ++id){
+                out.writeInt(vocab.word(id).length());
+            }
+            for (int id = 0; id < n; ++id){
+                out.writeBytes(vocab.word(id));	// the tokenizer only produces ASCII
+            }
+            index.write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static ModelFile load(File file) throws IOException
+    {
+        FileInputStream i_s = new FileInputStream(file);
+        try {
+            FileChannel channel = i_s.getChannel();
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            int fileVersion = in.getInt() == magic ? in.getInt() : -1;
+            if ( fileVersion < oldestVersion || fileVersion > version ){
+                throw new IOException(file + " is not a Bayespam model file");
+            }
+            ModelFile model = new ModelFile();
+            model.probRegular = in.getDouble();
+            model.probSpam = in.getDouble();
+            model.regularMessages = in.getInt();
+            model.spamMessages = in.getInt();
+            model.totalRegularWords = in.getInt();
+            model.totalSpamWords = in.getInt();
+            int n = in.getInt();
+
+            int[] regular = new int[n];
+            int[] spam = new int[n];
+            int[] lengths = new int[n];
+            model.ccl = new double[2 * n];
+            in.asIntBuffer().get(regular);
+            in.position(in.position() + 4 * n);
+            in.asIntBuffer().get(spam);
+            in.position(in.position() + 4 * n);
+            in.asDoubleBuffer().get(model.ccl);
+            in.position(in.position() + 16 * n);
+            in.asIntBuffer().get(lengths);
+            in.position(in.position() + 4 * n);
+
+            int wordBytes = 0;
+            for (int length : lengths){
+                wordBytes += length;
+            }
+            byte[] words = new byte[wordBytes];
+            in.get(words);
+
+            ///The words get the same IDs as in the saved dictionary, so the arrays above line up with them
+            model.vocab = new TokenDictionary(n);
+            int offset = 0;
+            for (int id = 0; id < n; ++id)
+            {
+                model.vocab.addCount(model.vocab.add(new String(words, offset, lengths[id], StandardCharsets.ISO_8859_1)), regular[id], spam[id]);
+                offset += lengths[id];
+            }
+            if ( fileVersion >= 4 ){
+                model.index = PerfectHashIndex.read(in, model.vocab, model.ccl);
+            }
+            return model;
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " is truncated");
+        } finally {
+            i_s.close();
+        }
+    }
+
+    // Loads only what is needed to classify: the probabilities, the totals and the saved PerfectHashIndex as an
+    // off-heap scoring table that is filled straight from the mapped file, without a String per word on the heap. The
+    // counts are skipped, so a model loaded this way can not be trained any further. A file without an index (version
+    // 3) is loaded on the heap once to build it.
+    public static ModelFile loadOffHeap(File file) throws IOException
+    {
+        FileInputStream i_s = new FileInputStream(file);
+        try {
+            FileChannel channel = i_s.getChannel();
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            int fileVersion = in.getInt() == magic ? in.getInt() : -1;
+            if ( fileVersion < oldestVersion || fileVersion > version ){
+                throw new IOException(file + " is not a Bayespam model file");
+            }
+            if ( fileVersion < 4 ){
+                ModelFile model = load(file);
+                model.offHeap = new PerfectHashIndex(model.vocab, model.ccl).offHeap();
+                model.vocab = null;
+                model.ccl = null;
+                return model;
+            }
+            ModelFile model = new ModelFile();
+            model.probRegular = in.getDouble();
+            model.probSpam = in.getDouble();
+            model.regularMessages = in.getInt();
+            model.spamMessages = in.getInt();
+            model.totalRegularWords = in.getInt();
+            model.totalSpamWords = in.getInt();
+            int n = in.getInt();
+
+            int ccl = in.position() + 8 * n;
+            int lengths = ccl + 16 * n;
+            int words = lengths + 4 * n;
+            if ( words > in.limit() ){
+                throw new IOException(file + " is truncated");
+            }
+            long wordBytes = 0;
+            for (int id = 0; id < n; ++id){
+                wordBytes += in.getInt(lengths + 4 * id);
+            }
+            if ( words + wordBytes > in.limit() ){
+                throw new IOException(file + " is truncated");
+            }
+            in.position(words + (int) wordBytes);
+            model.offHeap = PerfectHashIndex.readOffHeap(in, n, lengths, words, ccl);
+            return model;
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " is truncated");
+        } finally {
+            i_s.close();
+        }
+    }
+}
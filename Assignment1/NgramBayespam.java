@@ -0,0 +1,369 @@
+import java.io.*;
+import java.util.*;
+
+// Naive Bayes over the n-grams of the messages, from single words up to n words (-order N), in one model.
+// Every message is tokenized once and the n-grams of all orders are taken from a sliding window over its words.
+// An n-gram is stored as the ID of its first n - 1 words (an n-gram of the order below) and the ID of its last word,
+// packed into one long, so an n-gram of any order is a single map entry without any text.
+// Every order has its own word totals and CCLs, a message is scored with the n-grams of the orders -minOrder up to
+// -order. -order 1 gives the Bayespam model, -order 2 -minOrder 2 -minCount 4 -collapse the BigramBayespam one.
+//
+// Usage: java NgramBayespam <train dir> <test dir> [-order N] [-minOrder N] [-minCount N] [-acrossLines] [-collapse]
+public class NgramBayespam
+{
+    // This defines the two types of messages we have.
+    static enum MessageType
+    {
+        NORMAL, SPAM
+    }
+
+    // Follows the n-grams of every order that end at the current word. The subclass gives the ID of a word and of an
+    // n-gram, or -1 when it is not in the model, and receives every n-gram that was found.
+    static abstract class NgramSink implements Tokenizer.TokenSink
+    {
+        private final int[] ending = new int[order];	///ID of the n-gram of order i + 1 ending at the last word, -1 for none
+
+        NgramSink()
+        {
+            reset();
+        }
+
+        abstract int word(char[] chars, int length);
+
+        abstract int gram(int n, long key);
+
+        abstract void ngram(int n, int id);
+
+        public void token(char[] chars, int length)
+        {
+            int word = word(chars, length);
+            for (int n = order - 1; n >= 0; --n)       // from the top, so ending[n - 1] still ends at the last word
+            {
+                int id = -1;
+                if ( word >= 0 && n == 0 ){
+                    id = gram(0, word);
+                } else if ( word >= 0 && ending[n - 1] >= 0 ){
+                    id = gram(n, (long) ending[n - 1] << 32 | word);
+                }
+                ending[n] = id;
+                if ( id >= 0 ){
+                    ngram(n, id);
+                }
+            }
+        }
+
+        public void endOfLine()
+        {
+            if ( !acrossLines ){
+                reset();
+            }
+        }
+
+        // Starts over, for a new message
+        void reset()
+        {
+            Arrays.fill(ending, -1);
+        }
+    }
+
+    // Adds every n-gram to the model with the given message type
+    static class NgramCounter extends NgramSink
+    {
+        private final MessageType type;
+
+        NgramCounter(MessageType type)
+        {
+            this.type = type;
+        }
+
+        int word(char[] chars, int length)
+        {
+            return words.add(chars, length);
+        }
+
+        int gram(int n, long key)
+        {
+            return grams[n].add(key);
+        }
+
+        void ngram(int n, int id)
+        {
+            if ( type == MessageType.NORMAL ){
+                grams[n].addCount(id, 1, 0);
+            } else {
+                grams[n].addCount(id, 0, 1);
+            }
+        }
+    }
+
+    // Adds the class conditional likelihoods of the n-grams of the scored orders to the posteriors of a message
+    static class MessageScore extends NgramSink
+    {
+        ///Posteri of regular and spam are initialized with the probabilities
+        double posteriRegular = probRegular;
+        double posteriSpam = probSpam;
+
+        int word(char[] chars, int length)
+        {
+            return words.lookup(chars, length);
+        }
+
+        int gram(int n, long key)
+        {
+            return grams[n].lookup(key);
+        }
+
+        void ngram(int n, int id)
+        {
+            if ( n + 1 >= minOrder ){
+                posteriRegular += ccl[n][2 * id];
+                posteriSpam += ccl[n][2 * id + 1];
+            }
+        }
+    }
+
+    // Listings of the two subdirectories (regular/ and spam/)
+    private static File[] listing_regular = new File[0];
+    private static File[] listing_spam = new File[0];
+
+    ///These are our constant values
+    private static final double tuningParameter = 0.02;
+    private static final int shortWordSize = 3;	///Words with at most this many letters are left out
+
+    private static int order = 2;	///The longest n-grams in the model
+    private static int minOrder = 1;	///The shortest n-grams that are scored, the shorter ones are only kept as prefixes
+    private static int minCount = 1;	///N-grams that occur less often are dropped after training
+    private static boolean acrossLines = false;	///Whether n-grams go on over the end of a line, like they used to in BigramBayespam they do not
+    private static boolean collapseWhitespace = false;	///Tokenize like BigramBayespam instead of like Bayespam
+
+    // Every word gets an ID, grams[n] holds the n-grams of order n + 1 with their counts, and ccl[n] their CCLs by ID
+    private static TokenDictionary words = new TokenDictionary();
+    private static LongCountMap[] grams;
+    private static double[][] ccl;	///CCL regular at 2 * ID, CCL spam at 2 * ID + 1
+
+    private static MessageReader reader;
+
+    private static double probRegular;
+    private static double probSpam;
+    private static int[] totalRegularWords;	///The totals of every order
+    private static int[] totalSpamWords;
+
+    private static final SpamCorpus.ConfusionMatrix confusion = new SpamCorpus.ConfusionMatrix();
+
+    // List the regular and spam messages
+    private static void listDirs(File dir_location)
+    {
+        SpamCorpus corpus = SpamCorpus.training(dir_location);
+        listing_regular = corpus.regular;
+        listing_spam = corpus.spam;
+    }
+
+    // Read the messages of one type, every message is read once for the n-grams of all orders
+    private static void readMessages(MessageType type)
+    throws IOException
+    {
+        File[] messages = type == MessageType.NORMAL ? listing_regular : listing_spam;
+
+        NgramCounter counter = new NgramCounter(type);
+        for (int i = 0; i < messages.length; ++i)
+        {
+            counter.reset();
+            reader.read(messages[i], counter);
+        }
+    }
+
+    ///Drops the n-grams below the minimum count. The n-grams of the next order refer to these by ID, so they are
+    ///renumbered as well, and an n-gram whose prefix was dropped is dropped too.
+    private static void filterNgramCount()
+    {
+        int[] renumbered = null;	///New ID of every n-gram of the order below, -1 when it was dropped
+        for (int n = 0; n < order; ++n)
+        {
+            LongCountMap filtered = new LongCountMap();
+            int[] ids = new int[grams[n].size()];
+            for (int id = 0; id < grams[n].size(); ++id)
+            {
+                long key = grams[n].key(id);
+                int regular = grams[n].regularCount(id);
+                int spam = grams[n].spamCount(id);
+                int prefix = n > 0 ? renumbered[(int) (key >>> 32)] : 0;
+                if ( prefix < 0 || regular + spam < minCount ){
+                    ids[id] = -1;
+                    continue;
+                }
+                if ( n > 0 ){
+                    key = (long) prefix << 32 | (key & 0xFFFFFFFFL);
+                }
+                ids[id] = filtered.add(key);
+                filtered.addCount(ids[id], regular, spam);
+            }
+            grams[n] = filtered;
+            renumbered = ids;
+        }
+    }
+
+    private static void calcPReg(int regular, int spam){
+    	probRegular = SpamCorpus.prior(regular, regular, spam);
+    }
+
+    private static void calcPSpam(int regular, int spam){
+    	probSpam = SpamCorpus.prior(spam, regular, spam);
+    }
+
+    private static void countAllWords(){
+         totalRegularWords = new int[order];
+         totalSpamWords = new int[order];
+         for (int n = 0; n < order; ++n)
+         {
+             for (int id = 0; id < grams[n].size(); ++id)
+             {
+                 totalRegularWords[n] += grams[n].regularCount(id);
+                 totalSpamWords[n] += grams[n].spamCount(id);
+             }
+         }
+    }
+
+    ///The CCLs of every order, from the totals of that order
+    private static void calcCCL(){
+         int regular, spam;
+         double cclRegularValue, cclSpamValue;
+         ccl = new double[order][];
+         for (int n = 0; n < order; ++n)
+         {
+             ccl[n] = new double[2 * grams[n].size()];
+             for (int id = 0; id < grams[n].size(); ++id)
+             {
+                 regular = grams[n].regularCount(id);
+                 spam = grams[n].spamCount(id);
+
+                 if(regular != 0){
+                	cclRegularValue = (double) regular/totalRegularWords[n];
+                 }else{
+                	cclRegularValue = tuningParameter/(totalRegularWords[n] + totalSpamWords[n]);
+                 }
+                 if(spam != 0){
+                	 cclSpamValue = (double) spam/totalSpamWords[n];
+                 }else{
+                	 cclSpamValue = tuningParameter/(totalRegularWords[n] + totalSpamWords[n]);
+                 }
+
+                 ccl[n][2 * id] = Math.log10(cclRegularValue);
+                 ccl[n][2 * id + 1] = Math.log10(cclSpamValue);
+             }
+         }
+    }
+
+    ///The log odds (posteriRegular - posteriSpam) of a message, it is classified regular when they are above 0
+    static double scoreMessage(File f) throws IOException
+    {
+        MessageScore score = new MessageScore();
+        reader.read(f, score);
+        return score.posteriRegular - score.posteriSpam;
+    }
+
+    private static void classifyMessage(File f, MessageType type) throws IOException{
+         confusion.add(scoreMessage(f), type == MessageType.NORMAL);
+    }
+
+    /// List the regular and spam messages as one giant set of test messages to be classified
+    private static void listTest(File dir_location) throws IOException
+    {
+        SpamCorpus test = SpamCorpus.test(dir_location);
+        File[] regularListing = test.regular;
+        File[] spamListing = test.spam;
+
+        for(File listing : regularListing){
+        	classifyMessage(listing, MessageType.NORMAL);
+        }
+
+        for(File listing : spamListing){
+        	classifyMessage(listing, MessageType.SPAM);
+        }
+    }
+
+    ///Reads the optional settings that follow the directories on the cmd line
+    private static void parseOptions(String[] args, int first)
+    {
+        for (int i = first; i < args.length; ++i)
+        {
+            if ( args[i].equals("-order") && i + 1 < args.length ){
+                order = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-minOrder") && i + 1 < args.length ){
+                minOrder = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-minCount") && i + 1 < args.length ){
+                minCount = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-acrossLines") ){
+                acrossLines = true;
+            } else if ( args[i].equals("-collapse") ){
+                collapseWhitespace = true;
+            } else {
+                System.out.println( "- Error: unknown option " + args[i] + "\n" );
+                Runtime.getRuntime().exit(0);
+            }
+        }
+        if ( order < 1 || minOrder < 1 || minOrder > order )
+        {
+            System.out.println( "- Error: the orders must satisfy 1 <= -minOrder <= -order.\n" );
+            Runtime.getRuntime().exit(0);
+        }
+    }
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        parseOptions(args, 2);
+        reader = new MessageReader(new Tokenizer(shortWordSize, collapseWhitespace));
+
+        // Location of the directory (the path) taken from the cmd line (first arg)
+        File dir_location = new File( args[0] );
+
+        // Check if the cmd line arg is a directory
+        if ( !dir_location.isDirectory() )
+        {
+            System.out.println( "- Error: cmd line arg not a directory.\n" );
+            Runtime.getRuntime().exit(0);
+        }
+
+        // Initialize the regular and spam lists
+        listDirs(dir_location);
+
+        // Read the e-mail messages, once for all orders
+        grams = new LongCountMap[order];
+        for (int n = 0; n < order; ++n){
+            grams[n] = new LongCountMap();
+        }
+        readMessages(MessageType.NORMAL);
+        readMessages(MessageType.SPAM);
+
+        if ( minCount > 1 ){
+            filterNgramCount();
+        }
+
+        calcPReg(listing_regular.length, listing_spam.length);
+        calcPSpam(listing_regular.length, listing_spam.length);
+        countAllWords();
+        calcCCL();
+
+        StringBuilder sizes = new StringBuilder("N-grams:");
+        for (int n = 0; n < order; ++n){
+            sizes.append(" order ").append(n + 1).append(": ").append(grams[n].size()).append(n + 1 < order ? "," : "");
+        }
+        System.out.println(sizes);
+
+        // Location of the directory (the path) taken from the cmd line (second arg)
+        File dir_messages = new File( args[1] );
+
+        // Check if the cmd line arg is a directory
+        if ( !dir_messages.isDirectory() )
+        {
+            System.out.println( "- Error: cmd line arg not a directory.\n" );
+            Runtime.getRuntime().exit(0);
+        }
+
+        ///Tests all files and creates the confusion matrix
+        listTest(dir_messages);
+
+        ///output the confusion matrix
+        confusion.print();
+    }
+}
@@ -0,0 +1,102 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// The bigram CCLs of BigramBayespam outside the Java heap, the counterpart of OffHeapScoringTable: an open addressing
+// table keyed by the packed bigram (the IDs of its two words) in one direct ByteBuffer, so a model of millions of
+// bigrams is not a LongCountMap and a CCL array the garbage collector has to scan or copy. The words themselves stay
+// in the TokenDictionary on the heap, there are far fewer of them than bigrams. It is a direct ByteBuffer and not a
+// MemorySegment for the same reason as OffHeapScoringTable.
+// Every slot is 24 bytes: long key + 1 (0 marks an empty slot, the keys are never negative), double CCL regular,
+// double CCL spam. The slots are a power of two, at least twice the bigrams, and must fit in one 2 GB direct buffer:
+// 2^26 slots, so at most 2^25 (about 33.5 million) bigrams.
+public class OffHeapBigramTable
+{
+    private static final int slotBytes = 24;
+
+    private final ByteBuffer table;
+    private final int mask;
+    private final int bigrams;
+
+    // An empty table for the given number of bigrams
+    OffHeapBigramTable(int bigrams)
+    {
+        long capacity = 16;
+        while ( capacity < 2L * bigrams ){
+            capacity <<= 1;
+        }
+        if ( capacity * slotBytes > Integer.MAX_VALUE ){
+            throw new IllegalArgumentException("a model of " + bigrams + " bigrams does not fit in one off-heap table");
+        }
+        this.mask = (int) capacity - 1;
+        this.bigrams = bigrams;
+        this.table = ByteBuffer.allocateDirect((int) capacity * slotBytes).order(ByteOrder.nativeOrder());
+    }
+
+    // The table of a vocabulary, ccl holds the CCLs of every bigram by ID: regular at 2 * id, spam at 2 * id + 1
+    public static OffHeapBigramTable of(LongCountMap vocab, double[] cclById)
+    {
+        int n = vocab.size();
+        OffHeapBigramTable table = new OffHeapBigramTable(n);
+        for (int id = 0; id < n; ++id){
+            table.put(vocab.key(id), cclById[2 * id], cclById[2 * id + 1]);
+        }
+        return table;
+    }
+
+    // Adds a bigram, every bigram is added once
+    void put(long key, double regular, double spam)
+    {
+        int slot = spread(key) & mask;
+        while ( table.getLong(slot * slotBytes) != 0 ){
+            slot = (slot + 1) & mask;
+        }
+        int at = slot * slotBytes;
+        table.putLong(at, key + 1);
+        table.putDouble(at + 8, regular);
+        table.putDouble(at + 16, spam);
+    }
+
+    // The slot of a bigram, or -1 if it is not in the table
+    public int find(long key)
+    {
+        for (int slot = spread(key) & mask; ; slot = (slot + 1) & mask)
+        {
+            long stored = table.getLong(slot * slotBytes);
+            if ( stored == 0 ){
+                return -1;
+            }
+            if ( stored == key + 1 ){
+                return slot;
+            }
+        }
+    }
+
+    public double regular(int slot)
+    {
+        return table.getDouble(slot * slotBytes + 8);
+    }
+
+    public double spam(int slot)
+    {
+        return table.getDouble(slot * slotBytes + 16);
+    }
+
+    // Number of bigrams in the table
+    public int size()
+    {
+        return bigrams;
+    }
+
+    // The memory of the table in bytes, all of it outside the heap
+    public long bytes()
+    {
+        return table.capacity();
+    }
+
+    // Same mixing as LongCountMap, packed keys differ mostly in the low bits of each half
+    private static int spread(long key)
+    {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) ^ (int) hash;
+    }
+}
@@ -0,0 +1,95 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// The PerfectHashIndex of a model outside the Java heap, so a model of millions of words is a single object for the
+// garbage collector instead of millions of Strings and large arrays it has to scan or copy. It has the same seed,
+// pilots, remap array, 64 bit word hashes and CCLs by slot, and a lookup is the one probe of PerfectHashIndex.find
+// with the same hash functions: a word gets the same slot and CCLs on and off the heap.
+// Everything is in one direct ByteBuffer: long hash[n], double CCL[2n + 2] (regular at 2 * slot, spam at 2 * slot + 1
+// and 0 for the unknown slot n), int pilots[], int remap[range - n]. That is about 25 bytes per word, so the 2 GB of
+// one direct buffer hold a model of more than 80 million words.
+//
+// This is not a MemorySegment: on Java 17 that is the jdk.incubator.foreign module, whose API (MemoryAccess,
+// ResourceScope) was replaced in Java 18 and changed in every release until it became final in Java 22, so code
+// written against it only compiles on 17. VectorScoringKernel can use an incubator module because it is an optional
+// path next to the scalar loop; this table is the model itself, and within 2 GB a segment gives nothing the direct
+// buffer does not: one object for the garbage collector, whatever the number of words.
+public class OffHeapScoringTable
+{
+    private final ByteBuffer table;
+    private final long seed;
+    private final int range;
+    private final int words;
+    private final int buckets;
+    private final int cclAt;
+    private final int pilotsAt;
+    private final int remapAt;
+
+    // A table with the seed, pilots and remap array of an index of n words, the slots are filled with set
+    OffHeapScoringTable(long seed, int range, int[] pilots, int[] remap, int n)
+    {
+        long size = 8L * n + 8L * (2 * n + 2) + 4L * pilots.length + 4L * remap.length;
+        if ( size > Integer.MAX_VALUE ){
+            throw new IllegalArgumentException("a model of " + n + " words does not fit in one off-heap table");
+        }
+        this.seed = seed;
+        this.range = range;
+        this.words = n;
+        this.buckets = pilots.length;
+        this.cclAt = 8 * n;
+        this.pilotsAt = cclAt + 8 * (2 * n + 2);
+        this.remapAt = pilotsAt + 4 * pilots.length;
+        this.table = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+        for (int b = 0; b < pilots.length; ++b){
+            table.putInt(pilotsAt + 4 * b, pilots[b]);
+        }
+        for (int i = 0; i < remap.length; ++i){
+            table.putInt(remapAt + 4 * i, remap[i]);
+        }
+    }
+
+    // Stores the hash and CCLs of the word in a slot
+    void set(int slot, long hash, double regular, double spam)
+    {
+        table.putLong(8 * slot, hash);
+        table.putDouble(cclAt + 16 * slot, regular);
+        table.putDouble(cclAt + 16 * slot + 8, spam);
+    }
+
+    // The slot of the word in the first length chars, or -1 if it is not in the table
+    public int find(char[] chars, int length)
+    {
+        if ( words == 0 ){
+            return -1;
+        }
+        long hash = PerfectHashIndex.hash(chars, length, seed);
+        int pilot = table.getInt(pilotsAt + 4 * PerfectHashIndex.bucket(hash, buckets));
+        int slot = PerfectHashIndex.position(hash, pilot, range);
+        if ( slot >= words ){
+            slot = table.getInt(remapAt + 4 * (slot - words));
+        }
+        return table.getLong(8 * slot) == hash ? slot : -1;
+    }
+
+    public double regular(int slot)
+    {
+        return table.getDouble(cclAt + 16 * slot);
+    }
+
+    public double spam(int slot)
+    {
+        return table.getDouble(cclAt + 16 * slot + 8);
+    }
+
+    // Number of words in the table
+    public int size()
+    {
+        return words;
+    }
+
+    // The memory of the table in bytes, all of it outside the heap
+    public long bytes()
+    {
+        return table.capacity();
+    }
+}
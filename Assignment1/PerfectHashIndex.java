@@ -0,0 +1,363 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A read-only index of the trained vocabulary built with a minimal perfect hash (hash and displace), so every word
+// of the vocabulary has a slot of its own in [0, n) and a lookup is exactly one probe: hash the token, read the pilot
+// of its bucket, compute the slot and compare the 64 bit hash stored there. A token that is not in the vocabulary
+// lands on the slot of some word and is told apart by that hash (two words with the same 64 bit hash are as likely as
+// 1 in 2^64 / n, the build retries with another seed when the vocabulary has such a pair).
+// The CCLs are stored per slot, regular at 2 * slot and spam at 2 * slot + 1, next to each other. One more slot, n,
+// has CCLs of 0: the ScoringKernel sends the tokens that are not in the vocabulary there.
+//
+// Building: the words are spread over n / bucketSize buckets by their hash. Going from the largest bucket to the
+// smallest, every bucket gets the first pilot that sends all its words to free positions. The pilots search in a
+// range of n / loadFactor positions, because the last words to place would need about n tries each to find one of
+// the few free positions out of n; the words that end up above n are moved to the positions below n that are still
+// free with a small remap array, so the index stays minimal. Only the seed, the range and the pilots have to be
+// saved, the slots follow from them and the words (see write and read).
+// OffHeapScoringTable holds the same index outside the heap (see offHeap and readOffHeap).
+public class PerfectHashIndex
+{
+    private static final int bucketSize = 4;	///Average number of words per bucket, more is smaller but slower to build
+    private static final double loadFactor = 0.98;
+    private static final int maxPilot = 1 << 20;	///A bucket without a pilot below this is retried with another seed
+
+    private final long seed;
+    private final int range;	///Positions the pilots choose from, n and up
+    private final int[] pilots;
+    private final int[] remap;	///The slot below n of each used position from n up, by position - n
+    private final long[] hashes;	///The 64 bit hash of the word in each slot
+    private final double[] ccl;	///CCL regular at 2 * slot, CCL spam at 2 * slot + 1, and 0 for the unknown slot
+
+    private PerfectHashIndex(long seed, int range, int[] pilots, int n)
+    {
+        this.seed = seed;
+        this.range = range;
+        this.pilots = pilots;
+        this.remap = new int[range - n];
+        this.hashes = new long[n];
+        this.ccl = new double[2 * n + 2];
+    }
+
+    // Builds the index of a dictionary, ccl holds the CCLs of every word by ID: regular at 2 * id, spam at 2 * id + 1.
+    // The seeds are tried one by one until every bucket gets a pilot.
+    public PerfectHashIndex(TokenDictionary vocab, double[] cclById)
+    {
+        int n = vocab.size();
+        int buckets = Math.max(1, (n + bucketSize - 1) / bucketSize);
+        range = Math.max(n, (int) Math.ceil(n / loadFactor));
+        long seed = 1;
+        int[] pilots;
+        while ( (pilots = searchPilots(hashAll(vocab, seed), buckets, range)) == null ){
+            ++seed;
+        }
+        this.seed = seed;
+        this.pilots = pilots;
+        remap = new int[range - n];
+        hashes = new long[n];
+        ccl = new double[2 * n + 2];
+        fill(vocab, cclById);
+    }
+
+    // The slot of the word in the first length chars, or -1 if it is not in the vocabulary
+    public int find(char[] chars, int length)
+    {
+        if ( hashes.length == 0 ){
+            return -1;
+        }
+        long hash = hash(chars, length, seed);
+        int slot = position(hash, pilots[bucket(hash, pilots.length)], range);
+        if ( slot >= hashes.length ){
+            slot = remap[slot - hashes.length];
+        }
+        return hashes[slot] == hash ? slot : -1;
+    }
+
+    // The slot with CCLs of 0, for words that are not in the vocabulary
+    public int unknownSlot()
+    {
+        return hashes.length;
+    }
+
+    // Adds the CCLs of a message tokenized to word IDs to the posteriors (regular, spam), see ScoringKernel.sum
+    public int sum(int[] tokens, int length, int[] slots, double[] posteriors)
+    {
+        return ScoringKernel.sum(tokens, length, slots, ccl, posteriors);
+    }
+
+    public double regular(int slot)
+    {
+        return ccl[2 * slot];
+    }
+
+    public double spam(int slot)
+    {
+        return ccl[2 * slot + 1];
+    }
+
+    // The memory of the index in bytes
+    public long bytes()
+    {
+        return 4L * pilots.length + 4L * remap.length + 8L * hashes.length + 8L * ccl.length;
+    }
+
+    // Writes the seed, the range and the pilots (big endian), the rest is rebuilt from the words by read
+    public void write(DataOutputStream out) throws IOException
+    {
+        out.writeLong(seed);
+        out.writeInt(range);
+        out.writeInt(pilots.length);
+        for (int pilot : pilots){
+            out.writeInt(pilot);
+        }
+    }
+
+    // The index of the dictionary from the seed and pilots that write wrote for the same words, without searching
+    public static PerfectHashIndex read(ByteBuffer in, TokenDictionary vocab, double[] cclById) throws IOException
+    {
+        long seed = in.getLong();
+        int range = in.getInt();
+        int[] pilots = readPilots(in, range, vocab.size());
+        PerfectHashIndex index = new PerfectHashIndex(seed, range, pilots, vocab.size());
+        if ( !index.fill(vocab, cclById) ){
+            throw new IOException("the perfect hash does not match the words of the model");
+        }
+        return index;
+    }
+
+    // The same index as read gives, but straight into an OffHeapScoringTable and for the n words of a mapped model
+    // file: the length of word ID id is the int at lengths + 4 * id, the words are ASCII bytes one after the other from
+    // words on and their CCLs the doubles at ccl + 16 * id (regular) and ccl + 16 * id + 8 (spam). No String is made,
+    // only the hashes and slots of the words are on the heap while the table is filled.
+    public static OffHeapScoringTable readOffHeap(ByteBuffer in, int n, int lengths, int words, int ccl) throws IOException
+    {
+        long seed = in.getLong();
+        int range = in.getInt();
+        int[] pilots = readPilots(in, range, n);
+        long[] wordHashes = new long[n];
+        for (int id = 0, offset = words; id < n; ++id)
+        {
+            int length = in.getInt(lengths + 4 * id);
+            wordHashes[id] = hash(in, offset, length, seed);
+            offset += length;
+        }
+        int[] remap = new int[range - n];
+        int[] slots = place(wordHashes, pilots, range, remap);
+        if ( slots == null ){
+            throw new IOException("the perfect hash does not match the words of the model");
+        }
+        OffHeapScoringTable table = new OffHeapScoringTable(seed, range, pilots, remap, n);
+        for (int id = 0; id < n; ++id){
+            table.set(slots[id], wordHashes[id], in.getDouble(ccl + 16 * id), in.getDouble(ccl + 16 * id + 8));
+        }
+        return table;
+    }
+
+    private static int[] readPilots(ByteBuffer in, int range, int n) throws IOException
+    {
+        int[] pilots = new int[in.getInt()];
+        in.asIntBuffer().get(pilots);
+        in.position(in.position() + 4 * pilots.length);
+        if ( range < n || pilots.length == 0 ){
+            throw new IOException("the perfect hash does not match the words of the model");
+        }
+        return pilots;
+    }
+
+    // The same index outside the heap, see OffHeapScoringTable
+    public OffHeapScoringTable offHeap()
+    {
+        OffHeapScoringTable table = new OffHeapScoringTable(seed, range, pilots, remap, hashes.length);
+        for (int slot = 0; slot < hashes.length; ++slot){
+            table.set(slot, hashes[slot], ccl[2 * slot], ccl[2 * slot + 1]);
+        }
+        return table;
+    }
+
+    // Puts every word in its slot, false when two words get the same position (pilots of other words)
+    private boolean fill(TokenDictionary vocab, double[] cclById)
+    {
+        long[] wordHashes = hashAll(vocab, seed);
+        int[] slots = place(wordHashes, pilots, range, remap);
+        if ( slots == null ){
+            return false;
+        }
+        for (int id = 0; id < slots.length; ++id)
+        {
+            hashes[slots[id]] = wordHashes[id];
+            ccl[2 * slots[id]] = cclById[2 * id];
+            ccl[2 * slots[id] + 1] = cclById[2 * id + 1];
+        }
+        return true;
+    }
+
+    // The slot of every word by ID from the hashes of the words, filling in remap (range - n long) on the way. Null
+    // when two words get the same position (pilots of other words).
+    static int[] place(long[] wordHashes, int[] pilots, int range, int[] remap)
+    {
+        int n = wordHashes.length;
+        int[] slots = new int[n];
+        boolean[] taken = new boolean[range];
+        for (int id = 0; id < n; ++id)
+        {
+            slots[id] = position(wordHashes[id], pilots[bucket(wordHashes[id], pilots.length)], range);
+            if ( taken[slots[id]] ){
+                return null;
+            }
+            taken[slots[id]] = true;
+        }
+
+        ///Every used position from n up gets one of the free slots below n, there are exactly as many of both
+        for (int position = n, free = 0; position < range; ++position)
+        {
+            if ( taken[position] ){
+                while ( taken[free] ){
+                    ++free;
+                }
+                remap[position - n] = free++;
+            }
+        }
+
+        for (int id = 0; id < n; ++id){
+            if ( slots[id] >= n ){
+                slots[id] = remap[slots[id] - n];
+            }
+        }
+        return slots;
+    }
+
+    // The hash of every word by ID
+    private static long[] hashAll(TokenDictionary vocab, long seed)
+    {
+        long[] hashes = new long[vocab.size()];
+        char[] chars = new char[64];
+        for (int id = 0; id < hashes.length; ++id)
+        {
+            String word = vocab.word(id);
+            if ( chars.length < word.length() ){
+                chars = new char[2 * word.length()];
+            }
+            word.getChars(0, word.length(), chars, 0);
+            hashes[id] = hash(chars, word.length(), seed);
+        }
+        return hashes;
+    }
+
+    // The pilots of every bucket, or null when this seed does not work
+    private static int[] searchPilots(long[] hashes, int buckets, int range)
+    {
+        int n = hashes.length;
+        long[] sorted = hashes.clone();
+        Arrays.sort(sorted);
+        for (int i = 1; i < n; ++i){
+            if ( sorted[i] == sorted[i - 1] ){
+                return null;                            // two words with the same hash can not be told apart
+            }
+        }
+
+        ///The words of every bucket (a counting sort by bucket), then the buckets from large to small
+        int[] start = new int[buckets + 1];
+        for (long hash : hashes){
+            ++start[bucket(hash, buckets) + 1];
+        }
+        int largest = 0;
+        for (int b = 0; b < buckets; ++b){
+            largest = Math.max(largest, start[b + 1]);
+            start[b + 1] += start[b];
+        }
+        long[] members = new long[n];
+        int[] next = Arrays.copyOf(start, buckets);
+        for (long hash : hashes){
+            members[next[bucket(hash, buckets)]++] = hash;
+        }
+        int[] bySize = new int[largest + 2];
+        for (int b = 0; b < buckets; ++b){
+            ++bySize[largest - (start[b + 1] - start[b]) + 1];
+        }
+        for (int s = 0; s <= largest; ++s){
+            bySize[s + 1] += bySize[s];
+        }
+        int[] order = new int[buckets];
+        for (int b = 0; b < buckets; ++b){
+            order[bySize[largest - (start[b + 1] - start[b])]++] = b;
+        }
+
+        int[] pilots = new int[buckets];
+        boolean[] taken = new boolean[range];
+        int[] slots = new int[largest];
+        for (int b : order)
+        {
+            int size = start[b + 1] - start[b];
+            if ( size == 0 ){
+                break;                                  // only empty buckets are left
+            }
+            int pilot = 0;
+            search:
+            for (; pilot < maxPilot; ++pilot)
+            {
+                for (int k = 0; k < size; ++k)
+                {
+                    int slot = position(members[start[b] + k], pilot, range);
+                    if ( taken[slot] ){
+                        continue search;
+                    }
+                    for (int j = 0; j < k; ++j){
+                        if ( slots[j] == slot ){
+                            continue search;
+                        }
+                    }
+                    slots[k] = slot;
+                }
+                break;
+            }
+            if ( pilot == maxPilot ){
+                return null;
+            }
+            pilots[b] = pilot;
+            for (int k = 0; k < size; ++k){
+                taken[slots[k]] = true;
+            }
+        }
+        return pilots;
+    }
+
+    // FNV-1a over the chars from a seeded start, finished with the MurmurHash3 mixer so every bit depends on every char
+    static long hash(char[] chars, int length, long seed)
+    {
+        long hash = 0xCBF29CE484222325L ^ (seed * 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < length; ++i){
+            hash = (hash ^ chars[i]) * 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    // The same hash of a word stored as length ASCII bytes at offset
+    static long hash(ByteBuffer bytes, int offset, int length, long seed)
+    {
+        long hash = 0xCBF29CE484222325L ^ (seed * 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < length; ++i){
+            hash = (hash ^ (bytes.get(offset + i) & 0xFF)) * 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash)
+    {
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    // The low half of the hash picks the bucket, scaled into [0, buckets) without a division
+    static int bucket(long hash, int buckets)
+    {
+        return (int) (((hash & 0xFFFFFFFFL) * buckets) >>> 32);
+    }
+
+    // The position of a hash with a pilot: the hash and pilot mixed again, the high half scaled into [0, range)
+    static int position(long hash, int pilot, int range)
+    {
+        return (int) (((mix(hash ^ (pilot * 0x9E3779B97F4A7C15L)) >>> 32) * range) >>> 32);
+    }
+}
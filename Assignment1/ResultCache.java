@@ -0,0 +1,147 @@
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The log odds of recently classified messages, and why their scoring stopped early, so the copies of a spam
+// campaign are scored once instead of every time. A message is known by a 64 bit hash of its normalized body: the
+// bytes the tokenizer looks at, with letters lowercased and everything it drops left out, and line breaks the way it
+// counts them (\r\n is one). Two bodies with the same normalized bytes give the same tokens, so a hit is the score the
+// message would get, unless two different bodies share a hash (about 1 in 2^64 per pair). A message of a token cache
+// is known by a hash of its word IDs instead, which gives the same tokens just as well.
+// The cache holds at most capacity results and evicts the least recently used one. The owner has to invalidate it
+// whenever the model changes. The methods are synchronized, so the cache can be shared by scoring threads.
+public class ResultCache
+{
+    private static final char verticalTab = '\u000B';
+
+    // The log odds (posteriRegular - posteriSpam) of a message and why its scoring stopped early, null when it did not
+    public static class Result
+    {
+        public final double logOdds;
+        public final Bayespam.EarlyStop stopped;
+
+        Result(double logOdds, Bayespam.EarlyStop stopped)
+        {
+            this.logOdds = logOdds;
+            this.stopped = stopped;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<Long, Result> results;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    public ResultCache(final int capacity)
+    {
+        this.capacity = capacity;
+        this.results = new LinkedHashMap<Long, Result>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, Result> eldest)
+            {
+                if ( size() > capacity ){
+                    ++evictions;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // The key of the remaining bytes of a body, or of only the first maxBytes of them when maxBytes is above 0.
+    // The position of the buffer is not moved.
+    public static long key(ByteBuffer body, long maxBytes)
+    {
+        int end = maxBytes > 0 ? (int) Math.min(body.limit(), body.position() + maxBytes) : body.limit();
+        long hash = 0xCBF29CE484222325L;
+        long length = 0;
+        boolean afterReturn = false;
+        for (int i = body.position(); i < end; ++i)
+        {
+            int b = body.get(i) & 0xFF;
+            if ( b == '\n' ){
+                if ( !afterReturn ){
+                    hash = (hash ^ '\n') * 0x100000001B3L;
+                    ++length;
+                }
+                afterReturn = false;
+                continue;
+            }
+            afterReturn = b == '\r';
+            if ( b >= 'A' && b <= 'Z' ){
+                b |= 0x20;
+            } else if ( b == '\r' ){
+                b = '\n';
+            } else if ( !(b >= 'a' && b <= 'z') && b != ' ' && b != '\t' && b != '\f' && b != verticalTab ){
+                continue;                               // dropped by the tokenizer
+            }
+            hash = (hash ^ b) * 0x100000001B3L;
+            ++length;
+        }
+        hash ^= length;
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        return hash ^ (hash >>> 33);
+    }
+
+    // The key of a message that a token cache tokenized to these word IDs (-1 for an end of line). Only keys from the
+    // same token cache can be compared, its IDs are not the IDs of another one.
+    public static long key(int[] ids)
+    {
+        long hash = 0x84222325CBF29CE4L;                // another start than the body keys
+        for (int id : ids){
+            hash = (hash ^ id) * 0x100000001B3L;
+        }
+        hash ^= ids.length;
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        return hash ^ (hash >>> 33);
+    }
+
+    // The result of the message with this key, or null when it is not in the cache
+    public synchronized Result get(long key)
+    {
+        Result result = results.get(key);
+        if ( result == null ){
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return result;
+    }
+
+    // Stores the log odds of a message and why its scoring stopped early (null when the whole message was scored)
+    public synchronized void put(long key, double logOdds, Bayespam.EarlyStop stopped)
+    {
+        results.put(key, new Result(logOdds, stopped));
+    }
+
+    // Forgets every result, for a model that changed
+    public synchronized void invalidate()
+    {
+        if ( !results.isEmpty() ){
+            results.clear();
+            ++invalidations;
+        }
+    }
+
+    public synchronized long hits()
+    {
+        return hits;
+    }
+
+    public synchronized long misses()
+    {
+        return misses;
+    }
+
+    public synchronized long evictions()
+    {
+        return evictions;
+    }
+
+    public synchronized String report()
+    {
+        return "Result cache: " + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+            + invalidations + " invalidations, " + results.size() + " of " + capacity + " results";
+    }
+}
@@ -0,0 +1,100 @@
+// Scores a message that is already tokenized to word IDs (such as the messages of a TokenCache) in one pass over the
+// IDs, instead of handing every word to the scoring table one by one: two gathers per token, the slot of the word
+// and then its CCLs, and no hashing, strings or virtual calls.
+//   tokens   word IDs, -1 for an end of line
+//   slots    the slot of every word in the model by word ID + 1, slots[0] (the ends of lines) and the words the model
+//            does not have hold a slot whose CCLs are 0, so the loop has no branches
+//   ccl      the CCLs by slot, regular at 2 * slot and spam at 2 * slot + 1 (see PerfectHashIndex)
+// Bayespam only scores this way with -cache and without -maxTokens, -maxBytes and -margin, which need the words one by
+// one to stop early.
+//
+// By default the scalar loop below makes the sums: it is unrolled by four with two pairs of sums, one for the even and
+// one for the odd tokens, so an add does not wait for the one before it.
+// vectorize(true) (Bayespam -vectorKernel) switches to VectorScoringKernel, which makes them with jdk.incubator.vector
+// gathers and lane-wise adds. It is not the default because it was slower than the scalar loop on the machine it was
+// measured on (see SpamBenchmark, score.unigram.kernel.*): the gathers are bound by loads at these vocabulary sizes.
+// It lives in vector/ so a plain javac *.java does not need the incubator module, it is built and used with
+//   javac --add-modules jdk.incubator.vector -cp <classes> -d <classes> vector/VectorScoringKernel.java
+//   java --add-modules jdk.incubator.vector -cp <classes> Bayespam ... -vectorKernel
+// Both add the CCLs in another order than when the words are scored one by one, so the posteriors can differ from
+// those in the last bits.
+public class ScoringKernel
+{
+    // A kernel with the same contract as sum, implemented by VectorScoringKernel
+    interface Sum
+    {
+        int sum(int[] tokens, int length, int[] slots, double[] ccl, double[] posteriors);
+    }
+
+    private static final Sum vectorKernel = loadVectorKernel();
+    private static volatile Sum kernel = null;	///Null for the scalar loop
+
+    private ScoringKernel()
+    {
+    }
+
+    private static Sum loadVectorKernel()
+    {
+        try {
+            return (Sum) Class.forName("VectorScoringKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;                                // not built, or the incubator module was not added
+        }
+    }
+
+    // Switches between the vector kernel (when it could be loaded) and the scalar loop, returns whether the vector
+    // kernel is used
+    public static boolean vectorize(boolean on)
+    {
+        kernel = on ? vectorKernel : null;
+        return kernel != null;
+    }
+
+    public static boolean vectorized()
+    {
+        return kernel != null;
+    }
+
+    // Adds the CCLs of the first length tokens to posteriors[0] (regular) and posteriors[1] (spam) and returns the
+    // number of words among them
+    public static int sum(int[] tokens, int length, int[] slots, double[] ccl, double[] posteriors)
+    {
+        Sum vector = kernel;
+        if ( vector != null ){
+            return vector.sum(tokens, length, slots, ccl, posteriors);
+        }
+        return scalarSum(tokens, 0, length, slots, ccl, posteriors);
+    }
+
+    // The scalar loop of sum over the tokens from (inclusive) to (exclusive)
+    static int scalarSum(int[] tokens, int from, int to, int[] slots, double[] ccl, double[] posteriors)
+    {
+        double regularEven = 0, spamEven = 0, regularOdd = 0, spamOdd = 0;
+        int lines = 0;
+        int i = from;
+        for (; i + 4 <= to; i += 4)
+        {
+            int a = tokens[i], b = tokens[i + 1], c = tokens[i + 2], d = tokens[i + 3];
+            lines += (a >>> 31) + (b >>> 31) + (c >>> 31) + (d >>> 31);
+            int slotA = 2 * slots[a + 1], slotB = 2 * slots[b + 1], slotC = 2 * slots[c + 1], slotD = 2 * slots[d + 1];
+            regularEven += ccl[slotA];
+            spamEven += ccl[slotA + 1];
+            regularOdd += ccl[slotB];
+            spamOdd += ccl[slotB + 1];
+            regularEven += ccl[slotC];
+            spamEven += ccl[slotC + 1];
+            regularOdd += ccl[slotD];
+            spamOdd += ccl[slotD + 1];
+        }
+        for (; i < to; ++i)
+        {
+            lines += tokens[i] >>> 31;
+            int slot = 2 * slots[tokens[i] + 1];
+            regularEven += ccl[slot];
+            spamEven += ccl[slot + 1];
+        }
+        posteriors[0] += regularEven + regularOdd;
+        posteriors[1] += spamEven + spamOdd;
+        return to - from - lines;
+    }
+}
@@ -0,0 +1,413 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+// Measures the hot paths of Bayespam and BigramBayespam: tokenizing, training (reading and counting the training
+// set), building the model (calcCCL) and scoring single messages. Every benchmark is run a few times to warm up the
+// JIT and then measured for a number of iterations, the results are printed as CSV or JSON so runs can be compared.
+//
+// A corpus is a directory with train/ and test/, both holding a regular and a spam directory like spam-filter does.
+// With -synthetic N a corpus of N regular and N spam training messages (and a quarter of that to test) is generated
+// in a temporary directory, to see how the costs grow with the size of the training set.
+//
+// Usage: java SpamBenchmark [-corpus <dir>]... [-synthetic N]... [-warmup N] [-iterations N] [-format csv|json]
+//                           [-out <file>]
+// Without a corpus the bundled spam-filter directory is used.
+public class SpamBenchmark
+{
+    private static int warmup = 3;
+    private static int iterations = 10;
+    private static String format = "csv";
+    private static File out = null;
+
+    private static volatile double blackhole;	///Every result ends up here, so the JIT can not leave out the work
+
+    // Runs a benchmark once and returns the number of operations it did, per operation latencies go to the result
+    interface Operation
+    {
+        long run(Result result) throws IOException;
+    }
+
+    // The measurements of one benchmark on one corpus
+    static class Result
+    {
+        final String benchmark;
+        final String corpus;
+        final long bytes;	///The input size of one iteration, 0 when throughput in bytes means nothing
+        final long[] times = new long[iterations];
+        long operations;
+        long[] latencies = new long[256];
+        int latencyCount = 0;
+
+        Result(String benchmark, String corpus, long bytes)
+        {
+            this.benchmark = benchmark;
+            this.corpus = corpus;
+            this.bytes = bytes;
+        }
+
+        void latency(long nanos)
+        {
+            if ( latencyCount == latencies.length ){
+                latencies = Arrays.copyOf(latencies, 2 * latencyCount);
+            }
+            latencies[latencyCount++] = nanos;
+        }
+
+        double mean()
+        {
+            long total = 0;
+            for (long time : times){
+                total += time;
+            }
+            return (double) total / times.length;
+        }
+
+        long min()
+        {
+            return Arrays.stream(times).min().getAsLong();
+        }
+
+        long max()
+        {
+            return Arrays.stream(times).max().getAsLong();
+        }
+
+        // A percentile of the per operation latencies in microseconds, or none when they were not measured
+        String percentile(double fraction, String none)
+        {
+            if ( latencyCount == 0 ){
+                return none;
+            }
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            long nanos = sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)];
+            return String.format(Locale.ROOT, "%.3f", nanos / 1e3);
+        }
+    }
+
+    // Counts the words (or bigrams) of the messages, only to have something to do with them
+    static class CountingSink implements Tokenizer.TokenSink
+    {
+        long tokens = 0;
+
+        public void token(char[] chars, int length)
+        {
+            tokens += length;
+        }
+
+        public void endOfLine()
+        {
+        }
+    }
+
+    static class BigramCountingSink extends BigramBayespam.BigramSink
+    {
+        long bigrams = 0;
+
+        long word(char[] chars, int length)
+        {
+            return length;
+        }
+
+        void bigram(long key)
+        {
+            bigrams += key;
+        }
+    }
+
+    private static Result measure(String benchmark, String corpus, long bytes, Operation operation) throws IOException
+    {
+        for (int i = 0; i < warmup; ++i){
+            operation.run(new Result(benchmark, corpus, bytes));
+        }
+        Result result = new Result(benchmark, corpus, bytes);
+        for (int i = 0; i < iterations; ++i)
+        {
+            long start = System.nanoTime();
+            result.operations = operation.run(result);
+            result.times[i] = System.nanoTime() - start;
+        }
+        System.err.println("- " + benchmark + " on " + corpus + ": " + String.format(Locale.ROOT, "%.3f", result.mean() / 1e6) + " ms");
+        return result;
+    }
+
+    // Every benchmark on one corpus
+    private static void benchmarkCorpus(File corpus, String name, List<Result> results) throws IOException
+    {
+        final File train = new File(corpus, "train");
+        final File[] trainFiles = messages(train);
+        final File[] testFiles = messages(new File(corpus, "test"));
+        long trainBytes = size(trainFiles);
+        long testBytes = size(testFiles);
+
+        final MessageReader unigramReader = new MessageReader(Bayespam.newTokenizer());
+        final MessageReader bigramReader = new MessageReader(BigramBayespam.newTokenizer());
+
+        results.add(measure("tokenize.unigram", name, trainBytes, result -> {
+            CountingSink sink = new CountingSink();
+            for (File f : trainFiles){
+                unigramReader.read(f, sink);
+            }
+            blackhole += sink.tokens;
+            return trainFiles.length;
+        }));
+        results.add(measure("tokenize.bigram", name, trainBytes, result -> {
+            BigramCountingSink sink = new BigramCountingSink();
+            for (File f : trainFiles){
+                bigramReader.read(f, sink);
+            }
+            blackhole += sink.bigrams;
+            return trainFiles.length;
+        }));
+
+        results.add(measure("train.unigram", name, trainBytes, result -> {
+            Bayespam.countTrainingSet(train);
+            return trainFiles.length;
+        }));
+        results.add(measure("build.unigram", name, 0, result -> {
+            Bayespam.calcCCL();
+            return 1;
+        }));
+        results.add(measure("score.unigram", name, testBytes, result -> {
+            for (File f : testFiles)
+            {
+                long start = System.nanoTime();
+                blackhole += Bayespam.scoreMessage(f);
+                result.latency(System.nanoTime() - start);
+            }
+            return testFiles.length;
+        }));
+
+        ///The test messages tokenized to word IDs once, like a token cache keeps them: scored word by word from the
+        ///IDs (what the cache replays to the scoring table) and summed by the ScoringKernel, with its scalar loop and
+        ///with the Vector API when VectorScoringKernel is built and the incubator module added
+        final TokenCache tokens = Bayespam.loadTokenCache(new File(corpus, "benchmark-tokens.nonexistent"));
+        for (File f : testFiles){
+            tokens.ids(f, unigramReader);
+        }
+        results.add(measure("score.unigram.replay", name, testBytes, result -> {
+            for (File f : testFiles)
+            {
+                long start = System.nanoTime();
+                Bayespam.MessageScore score = new Bayespam.MessageScore();
+                tokens.read(f, unigramReader, score);
+                blackhole += score.posteriRegular - score.posteriSpam;
+                result.latency(System.nanoTime() - start);
+            }
+            return testFiles.length;
+        }));
+        boolean vector = ScoringKernel.vectorized();
+        for (boolean on : new boolean[] { false, true })
+        {
+            if ( ScoringKernel.vectorize(on) != on ){
+                continue;                               // no vector kernel
+            }
+            results.add(measure("score.unigram.kernel." + (on ? "vector" : "scalar"), name, testBytes, result -> {
+                for (File f : testFiles)
+                {
+                    long start = System.nanoTime();
+                    blackhole += Bayespam.scoreTokens(tokens.ids(f, unigramReader), tokens);
+                    result.latency(System.nanoTime() - start);
+                }
+                return testFiles.length;
+            }));
+        }
+        ScoringKernel.vectorize(vector);
+
+        results.add(measure("train.bigram", name, trainBytes, result -> {
+            BigramBayespam.countTrainingSet(train);
+            return trainFiles.length;
+        }));
+        results.add(measure("build.bigram", name, 0, result -> {
+            BigramBayespam.calcCCL();
+            return 1;
+        }));
+        results.add(measure("score.bigram", name, testBytes, result -> {
+            for (File f : testFiles)
+            {
+                long start = System.nanoTime();
+                blackhole += BigramBayespam.scoreMessage(f);
+                result.latency(System.nanoTime() - start);
+            }
+            return testFiles.length;
+        }));
+    }
+
+    // The message files in both subdirectories of a train or test directory
+    private static File[] messages(File dir)
+    {
+        File[] subdirs = dir.listFiles();
+        if ( subdirs == null || subdirs.length != 2 )
+        {
+            System.out.println( "- Error: " + dir + " does not contain two subdirectories.\n" );
+            Runtime.getRuntime().exit(0);
+        }
+        List<File> files = new ArrayList<File>();
+        for (File subdir : subdirs){
+            files.addAll(Arrays.asList(subdir.listFiles()));
+        }
+        return files.toArray(new File[0]);
+    }
+
+    private static long size(File[] files)
+    {
+        long bytes = 0;
+        for (File f : files){
+            bytes += f.length();
+        }
+        return bytes;
+    }
+
+    // Writes a corpus of made up messages. The words of both classes come from one Zipf distributed vocabulary, the
+    // spam messages draw them in a different order, so the classes share the common words but differ in the rest.
+    // The folders are named regular and spam, so SpamCorpus labels them by name whatever their size.
+    private static File syntheticCorpus(int messages) throws IOException
+    {
+        Random random = new Random(messages);
+        String[] words = new String[20000];
+        for (int i = 0; i < words.length; ++i)
+        {
+            char[] chars = new char[2 + random.nextInt(9)];
+            for (int c = 0; c < chars.length; ++c){
+                chars[c] = (char) ('a' + random.nextInt(26));
+            }
+            words[i] = random.nextInt(10) == 0 ? new String(chars).toUpperCase() : new String(chars);
+        }
+        double[] cumulative = new double[words.length];
+        double total = 0;
+        for (int i = 0; i < words.length; ++i)
+        {
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+        int[] spamOrder = new int[words.length];
+        for (int i = 0; i < words.length; ++i){
+            spamOrder[i] = i < 100 ? i : 100 + (i * 7919) % (words.length - 100);
+        }
+
+        File corpus = Files.createTempDirectory("spam-benchmark").toFile();
+        String[] parts = { "train/regular", "train/spam", "test/regular", "test/spam" };
+        for (String part : parts)
+        {
+            File dir = new File(corpus, part);
+            dir.mkdirs();
+            boolean spam = part.endsWith("spam");
+            int count = part.startsWith("train") ? messages : Math.max(1, messages / 4);
+            for (int m = 0; m < count; ++m)
+            {
+                Writer w = new BufferedWriter(new FileWriter(new File(dir, "msg" + m + ".txt")));
+                try {
+                    int lines = 10 + random.nextInt(40);
+                    for (int l = 0; l < lines; ++l)
+                    {
+                        int lineWords = 3 + random.nextInt(12);
+                        for (int i = 0; i < lineWords; ++i)
+                        {
+                            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                            rank = Math.min(words.length - 1, rank < 0 ? -rank - 1 : rank);
+                            w.write(words[spam ? spamOrder[rank] : rank]);
+                            w.write(random.nextInt(8) == 0 ? ", " : " ");
+                        }
+                        w.write('\n');
+                    }
+                } finally {
+                    w.close();
+                }
+            }
+        }
+        return corpus;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if ( children != null ){
+            for (File child : children){
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(List<Result> results, PrintStream print)
+    {
+        if ( format.equals("json") ){
+            print.println("[");
+        } else {
+            print.println("benchmark,corpus,iterations,operations,mean_ms,min_ms,max_ms,ops_per_s,mb_per_s,p50_us,p99_us");
+        }
+        for (int i = 0; i < results.size(); ++i)
+        {
+            Result r = results.get(i);
+            double seconds = r.mean() / 1e9;
+            String none = format.equals("json") ? "null" : "";
+            Object[] values = { r.benchmark, r.corpus, iterations, r.operations, r.mean() / 1e6, r.min() / 1e6, r.max() / 1e6,
+                    r.operations / seconds, r.bytes / seconds / (1 << 20), r.percentile(0.50, none), r.percentile(0.99, none) };
+            if ( format.equals("json") ){
+                print.println(String.format(Locale.ROOT, "  {\"benchmark\": \"%s\", \"corpus\": \"%s\", \"iterations\": %d, "
+                        + "\"operations\": %d, \"mean_ms\": %.4f, \"min_ms\": %.4f, \"max_ms\": %.4f, \"ops_per_s\": %.2f, "
+                        + "\"mb_per_s\": %.3f, \"p50_us\": %s, \"p99_us\": %s}" + (i + 1 < results.size() ? "," : ""), values));
+            } else {
+                print.println(String.format(Locale.ROOT, "%s,%s,%d,%d,%.4f,%.4f,%.4f,%.2f,%.3f,%s,%s", values));
+            }
+        }
+        if ( format.equals("json") ){
+            print.println("]");
+        }
+    }
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        List<File> corpora = new ArrayList<File>();
+        List<Integer> synthetic = new ArrayList<Integer>();
+        for (int i = 0; i < args.length; ++i)
+        {
+            if ( args[i].equals("-corpus") && i + 1 < args.length ){
+                corpora.add(new File(args[++i]));
+            } else if ( args[i].equals("-synthetic") && i + 1 < args.length ){
+                synthetic.add(Integer.parseInt(args[++i]));
+            } else if ( args[i].equals("-warmup") && i + 1 < args.length ){
+                warmup = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-iterations") && i + 1 < args.length ){
+                iterations = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ( args[i].equals("-format") && i + 1 < args.length ){
+                format = args[++i];
+            } else if ( args[i].equals("-out") && i + 1 < args.length ){
+                out = new File(args[++i]);
+            } else {
+                System.out.println( "- Error: unknown option " + args[i] + "\n" );
+                Runtime.getRuntime().exit(0);
+            }
+        }
+        if ( corpora.isEmpty() && synthetic.isEmpty() ){
+            corpora.add(new File("spam-filter"));
+        }
+
+        List<Result> results = new ArrayList<Result>();
+        for (File corpus : corpora){
+            benchmarkCorpus(corpus, corpus.getName(), results);
+        }
+        for (int messages : synthetic)
+        {
+            File corpus = syntheticCorpus(messages);
+            try {
+                benchmarkCorpus(corpus, "synthetic-" + messages, results);
+            } finally {
+                delete(corpus);
+            }
+        }
+
+        if ( out == null ){
+            write(results, System.out);
+            return;
+        }
+        PrintStream print = new PrintStream(new FileOutputStream(out));
+        try {
+            write(results, print);
+        } finally {
+            print.close();
+        }
+    }
+}
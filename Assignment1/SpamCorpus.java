@@ -0,0 +1,145 @@
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// What Bayespam, BigramBayespam, NgramBayespam and CrossValidation share about a corpus directory: finding the
+// regular and spam messages in its two subdirectories, the priors of the two classes and the confusion matrix of a
+// test run.
+// The class of a subdirectory is taken from its name by typeOf, the rule CorpusSource uses for the folders of a zip
+// archive and for mbox files, so a corpus gets the same labels however it is passed in. Only when the names of the two
+// subdirectories do not tell, the training set falls back to their size and the test set to their order.
+public class SpamCorpus
+{
+    private static final int sizeOfRegularFolder = 28;	///We know this is the regular/spam folder based on size(this is the max size of regular)
+
+    public final File[] regular;
+    public final File[] spam;
+
+    private SpamCorpus(File[] regular, File[] spam)
+    {
+        this.regular = regular;
+        this.spam = spam;
+    }
+
+    // The two subdirectories of a directory, exits with an error when there are not exactly two
+    private static File[] subdirectories(File dir_location)
+    {
+        // List all files in the directory passed
+        File[] dir_listing = dir_location.listFiles();
+
+        // Check that there are 2 subdirectories
+        if ( dir_listing == null || dir_listing.length != 2 )
+        {
+            System.out.println( "- Error: specified directory does not contain two subdirectories.\n" );
+            Runtime.getRuntime().exit(0);
+        }
+        return dir_listing;
+    }
+
+    // The training messages: by the names of the subdirectories, otherwise the one with more than
+    // sizeOfRegularFolder messages holds the regular ones
+    public static SpamCorpus training(File dir_location)
+    {
+        File[] dir_listing = subdirectories(dir_location);
+        SpamCorpus named = byName(dir_listing);
+        if ( named != null ){
+            return named;
+        }
+        if(dir_listing[0].listFiles().length>sizeOfRegularFolder){
+        	return new SpamCorpus(dir_listing[0].listFiles(), dir_listing[1].listFiles());
+        }
+        return new SpamCorpus(dir_listing[1].listFiles(), dir_listing[0].listFiles());
+    }
+
+    // The test messages: by the names of the subdirectories, otherwise the first holds the regular ones and the
+    // second the spam
+    public static SpamCorpus test(File dir_location)
+    {
+        File[] dir_listing = subdirectories(dir_location);
+        SpamCorpus named = byName(dir_listing);
+        if ( named != null ){
+            return named;
+        }
+        return new SpamCorpus(dir_listing[0].listFiles(), dir_listing[1].listFiles());
+    }
+
+    // The messages by the names of the two subdirectories, null unless one names the regular and the other the spam
+    private static SpamCorpus byName(File[] dir_listing)
+    {
+        Boolean first = typeOf(dir_listing[0].getName());
+        Boolean second = typeOf(dir_listing[1].getName());
+        if ( first == null || second == null || first.equals(second) ){
+            return null;
+        }
+        File regular = first ? dir_listing[1] : dir_listing[0];
+        File spam = first ? dir_listing[0] : dir_listing[1];
+        return new SpamCorpus(regular.listFiles(), spam.listFiles());
+    }
+
+    // The class a folder or mbox file name stands for (without its extension): true for "spam", false for "regular",
+    // "normal" or "ham" and null for any other name
+    public static Boolean typeOf(String name)
+    {
+        int dot = name.lastIndexOf('.');
+        String type = (dot > 0 ? name.substring(0, dot) : name).toLowerCase(Locale.ROOT);
+        if ( type.equals("spam") ){
+            return Boolean.TRUE;
+        }
+        if ( type.equals("regular") || type.equals("normal") || type.equals("ham") ){
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
+    // The prior of a class with count of the regular + spam messages
+    public static double prior(int count, int regular, int spam)
+    {
+        return (double) count / (regular + spam);
+    }
+
+    // The confusion matrix, LongAdders because the test messages may be classified by several threads at once
+    public static class ConfusionMatrix
+    {
+        private final LongAdder truePositive = new LongAdder();	///Regular and classified regular
+        private final LongAdder falsePositive = new LongAdder();	///Spam and classified regular
+        private final LongAdder trueNegative = new LongAdder();	///Spam and classified spam
+        private final LongAdder falseNegative = new LongAdder();	///Regular and classified spam
+
+        // Adds a message with the given log odds (posteriRegular - posteriSpam), it is classified regular above 0
+        public void add(double logOdds, boolean regular)
+        {
+            if ( logOdds > 0 ){
+                (regular ? truePositive : falsePositive).increment();
+            } else {
+                (regular ? falseNegative : trueNegative).increment();
+            }
+        }
+
+        // Number of messages counted
+        public long total()
+        {
+            return truePositive.sum() + falseNegative.sum() + trueNegative.sum() + falsePositive.sum();
+        }
+
+        // Prints the counts and the fractions classified correctly
+        public void print()
+        {
+            long tp = truePositive.sum(), fp = falsePositive.sum(), tn = trueNegative.sum(), fn = falseNegative.sum();
+            System.out.println("True Positvie count: " + tp);
+            System.out.println("False Postive count: " + fp);
+            System.out.println("True Negative count: " + tn);
+            System.out.println("False Negative count: " + fn);
+
+            long total = tp + fn + tn + fp;
+            double incorrectClassified = (double) (fp+fn)/total;
+            double correctClassified = (double) (tp+tn)/total;
+            double correctClassifiedSpam = (double) tn/(tn+fp);
+            double correctClassifiedRegular = (double) tp/(tp+fn);
+
+            System.out.println("Total Correct classified: " + correctClassified*100 + "%");
+            System.out.println("Total Incorrect classified: " + incorrectClassified*100 + "%");
+            System.out.println("Correct classified spam: " + correctClassifiedSpam*100 + "%");
+            System.out.println("Correct classified regular: " + correctClassifiedRegular*100 + "%");
+        }
+    }
+}
@@ -0,0 +1,347 @@
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Where the time of a Bayespam run goes: the wall time of every phase, the files, tokens and bytes that were read,
+// the size of the model and a histogram of the time it took to classify each message.
+// Everything is counted once per message or once per phase, never per token, so the cost on the hot path is a few
+// LongAdder increments and two System.nanoTime calls per message. The counters are read through JMX (SpamMetricsMBean)
+// and, when an interval is given, as one log line every interval.
+//
+// The tokenizer reads, cleans and counts the words of a message in a single pass, so reading, cleaning (the old
+// cleanLine) and counting (addWord) are one phase: training.
+public class SpamMetrics implements SpamMetricsMBean
+{
+    // The phases of a run, in the order they happen
+    static enum Phase
+    {
+        LISTING, TRAINING, CCL, CLASSIFICATION
+    }
+
+    private static final String name = "Bayespam:type=SpamMetrics";
+
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+    private volatile Phase current = null;
+    private volatile long currentStart = 0;
+
+    private final LongAdder trainingFiles = new LongAdder();
+    private final LongAdder trainingTokens = new LongAdder();
+    private final LongAdder trainingBytes = new LongAdder();
+    private final LongAdder classifiedMessages = new LongAdder();
+    private final LongAdder classifiedTokens = new LongAdder();
+    private volatile int vocabularySize = 0;
+    private volatile long modelBytes = 0;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private ScheduledExecutorService logger = null;
+
+    // A histogram of latencies in nanoseconds with 8 buckets per power of two, so a percentile is off by at most
+    // 1/8th. Recording is one atomic increment, the buckets are only walked when a percentile is asked for.
+    static class LatencyHistogram
+    {
+        private static final int subBuckets = 8;	///Buckets per power of two, a power of two itself
+        private static final int subBits = 3;
+        private final AtomicLongArray counts = new AtomicLongArray((64 - subBits + 1) * subBuckets);
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos)
+        {
+            counts.incrementAndGet(bucket(Math.max(0, nanos)));
+            max.accumulate(nanos);
+        }
+
+        private static int bucket(long nanos)
+        {
+            if ( nanos < subBuckets ){
+                return (int) nanos;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) (nanos >>> (exponent - subBits)) & (subBuckets - 1);
+            return (exponent - subBits + 1) * subBuckets + sub;
+        }
+
+        // The smallest latency that falls in a bucket
+        private static long lowerBound(int bucket)
+        {
+            if ( bucket < subBuckets ){
+                return bucket;
+            }
+            int exponent = bucket / subBuckets + subBits - 1;
+            return (long) (subBuckets + bucket % subBuckets) << (exponent - subBits);
+        }
+
+        long count()
+        {
+            long count = 0;
+            for (int b = 0; b < counts.length(); ++b){
+                count += counts.get(b);
+            }
+            return count;
+        }
+
+        // The upper bound of the bucket that holds the given fraction of the latencies, or -1 without latencies
+        long percentile(double fraction)
+        {
+            long count = count();
+            if ( count == 0 ){
+                return -1;
+            }
+            long rank = (long) Math.ceil(fraction * count), seen = 0;
+            for (int b = 0; b < counts.length(); ++b)
+            {
+                seen += counts.get(b);
+                if ( seen >= Math.max(1, rank) ){
+                    return Math.min(lowerBound(b + 1) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        long max()
+        {
+            return max.get();
+        }
+
+        // Every bucket that is used, as "from-to us: count" lines
+        public String toString()
+        {
+            StringBuilder text = new StringBuilder();
+            for (int b = 0; b < counts.length(); ++b)
+            {
+                long count = counts.get(b);
+                if ( count != 0 ){
+                    text.append(String.format(Locale.ROOT, "%.1f-%.1f us: %d%n",
+                        lowerBound(b) / 1e3, lowerBound(b + 1) / 1e3, count));
+                }
+            }
+            return text.toString();
+        }
+    }
+
+    // Registers the metrics as an MBean, so they can be watched while Bayespam runs
+    public void register()
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+        } catch (JMException e) {
+            System.out.println( "- Warning: the metrics could not be registered with JMX: " + e.getMessage() + "\n" );
+        }
+    }
+
+    // Prints the log line every intervalSeconds on a background thread, until stopLog
+    public void startLog(int intervalSeconds)
+    {
+        logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "spam-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.scheduleAtFixedRate(() -> System.out.println(logLine()), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stopLog()
+    {
+        if ( logger != null ){
+            logger.shutdownNow();
+            logger = null;
+        }
+    }
+
+    public void begin(Phase phase)
+    {
+        currentStart = System.nanoTime();
+        current = phase;
+    }
+
+    public void end(Phase phase)
+    {
+        phaseNanos.addAndGet(phase.ordinal(), System.nanoTime() - currentStart);
+        current = null;
+    }
+
+    // One training message that was read, with the number of tokens it had
+    public void trained(long tokens, long bytes)
+    {
+        trainingFiles.increment();
+        trainingTokens.add(tokens);
+        trainingBytes.add(bytes);
+    }
+
+    // One classified message, with the number of tokens that were scored and the time it took
+    public void classified(long tokens, long nanos)
+    {
+        classifiedMessages.increment();
+        classifiedTokens.add(tokens);
+        latencies.record(nanos);
+    }
+
+    public void model(int vocabularySize, long modelBytes)
+    {
+        this.vocabularySize = vocabularySize;
+        this.modelBytes = modelBytes;
+    }
+
+    // Wall time of a phase, including the part of a phase that is still running
+    private long nanos(Phase phase)
+    {
+        long nanos = phaseNanos.get(phase.ordinal());
+        if ( current == phase ){
+            nanos += System.nanoTime() - currentStart;
+        }
+        return nanos;
+    }
+
+    private double perSecond(long count, Phase phase)
+    {
+        long nanos = nanos(phase);
+        return nanos == 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    public String getPhase()
+    {
+        Phase phase = current;
+        return phase == null ? "idle" : phase.name().toLowerCase(Locale.ROOT);
+    }
+
+    public long getListingMillis()
+    {
+        return nanos(Phase.LISTING) / 1000000;
+    }
+
+    public long getTrainingMillis()
+    {
+        return nanos(Phase.TRAINING) / 1000000;
+    }
+
+    public long getCclMillis()
+    {
+        return nanos(Phase.CCL) / 1000000;
+    }
+
+    public long getClassificationMillis()
+    {
+        return nanos(Phase.CLASSIFICATION) / 1000000;
+    }
+
+    public long getTrainingFiles()
+    {
+        return trainingFiles.sum();
+    }
+
+    public long getTrainingTokens()
+    {
+        return trainingTokens.sum();
+    }
+
+    public long getTrainingBytes()
+    {
+        return trainingBytes.sum();
+    }
+
+    public double getTrainingFilesPerSecond()
+    {
+        return perSecond(trainingFiles.sum(), Phase.TRAINING);
+    }
+
+    public double getTrainingTokensPerSecond()
+    {
+        return perSecond(trainingTokens.sum(), Phase.TRAINING);
+    }
+
+    public long getClassifiedMessages()
+    {
+        return classifiedMessages.sum();
+    }
+
+    public long getClassifiedTokens()
+    {
+        return classifiedTokens.sum();
+    }
+
+    public double getClassifiedMessagesPerSecond()
+    {
+        return perSecond(classifiedMessages.sum(), Phase.CLASSIFICATION);
+    }
+
+    public double getClassifiedTokensPerSecond()
+    {
+        return perSecond(classifiedTokens.sum(), Phase.CLASSIFICATION);
+    }
+
+    public int getVocabularySize()
+    {
+        return vocabularySize;
+    }
+
+    public long getModelBytes()
+    {
+        return modelBytes;
+    }
+
+    public double getLatencyP50Micros()
+    {
+        return micros(latencies.percentile(0.50));
+    }
+
+    public double getLatencyP90Micros()
+    {
+        return micros(latencies.percentile(0.90));
+    }
+
+    public double getLatencyP99Micros()
+    {
+        return micros(latencies.percentile(0.99));
+    }
+
+    public double getLatencyMaxMicros()
+    {
+        return latencies.max() / 1e3;
+    }
+
+    // NaN before the first message is classified
+    private static double micros(long nanos)
+    {
+        return nanos < 0 ? Double.NaN : nanos / 1e3;
+    }
+
+    public String getLatencyHistogram()
+    {
+        return latencies.toString();
+    }
+
+    // The periodic log line: the phase that is running and the counters so far
+    public String logLine()
+    {
+        String line = String.format(Locale.ROOT, "Metrics: phase=%s trained=%d (%.0f files/s, %.0f tokens/s)"
+            + " vocabulary=%d model=%dKB classified=%d (%.0f messages/s)",
+            getPhase(), getTrainingFiles(), getTrainingFilesPerSecond(), getTrainingTokensPerSecond(),
+            vocabularySize, modelBytes / 1024, getClassifiedMessages(), getClassifiedMessagesPerSecond());
+        if ( getClassifiedMessages() == 0 ){
+            return line;
+        }
+        return line + String.format(Locale.ROOT, " p50=%.1fus p99=%.1fus", getLatencyP50Micros(), getLatencyP99Micros());
+    }
+
+    // The summary at the end of a run, one line per phase
+    public String report()
+    {
+        return String.format(Locale.ROOT, "Listing: %d ms%n"
+            + "Training: %d ms, %d files (%.0f files/s), %d tokens (%.0f tokens/s), %d KB%n"
+            + "CCL: %d ms, %d words, model about %d KB%n"
+            + "Classification: %d ms, %d messages (%.0f messages/s), %d tokens, latency p50 %.1f us, p90 %.1f us,"
+            + " p99 %.1f us, max %.1f us",
+            getListingMillis(),
+            getTrainingMillis(), getTrainingFiles(), getTrainingFilesPerSecond(), getTrainingTokens(),
+            getTrainingTokensPerSecond(), getTrainingBytes() / 1024,
+            getCclMillis(), vocabularySize, modelBytes / 1024,
+            getClassificationMillis(), getClassifiedMessages(), getClassifiedMessagesPerSecond(), getClassifiedTokens(),
+            getLatencyP50Micros(), getLatencyP90Micros(), getLatencyP99Micros(), getLatencyMaxMicros());
+    }
+}
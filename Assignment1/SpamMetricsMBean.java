@@ -0,0 +1,31 @@
+// The attributes SpamMetrics shows through JMX (jconsole, VisualVM, ...) under the name "Bayespam:type=SpamMetrics".
+// Times are in milliseconds, latencies in microseconds, rates per second of the phase they belong to.
+public interface SpamMetricsMBean
+{
+    String getPhase();
+
+    long getListingMillis();
+    long getTrainingMillis();
+    long getCclMillis();
+    long getClassificationMillis();
+
+    long getTrainingFiles();
+    long getTrainingTokens();
+    long getTrainingBytes();
+    double getTrainingFilesPerSecond();
+    double getTrainingTokensPerSecond();
+
+    long getClassifiedMessages();
+    long getClassifiedTokens();
+    double getClassifiedMessagesPerSecond();
+    double getClassifiedTokensPerSecond();
+
+    int getVocabularySize();
+    long getModelBytes();
+
+    double getLatencyP50Micros();
+    double getLatencyP90Micros();
+    double getLatencyP99Micros();
+    double getLatencyMaxMicros();
+    String getLatencyHistogram();
+}
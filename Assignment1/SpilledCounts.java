@@ -0,0 +1,180 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Counts of long keys (such as packed bigrams) that do not have to fit in memory. The counts are made in a LongCountMap
+// of a fixed capacity; whenever it is full it is spilled to a temporary file as a run sorted by key, and emptied.
+// At the end the runs are merged (k-way, one buffered stream per run) and only the keys that occur often enough are
+// kept, so memory holds one full map and the final counts, however many keys the messages have.
+//
+// Every key remembers where it was first seen: the number of its run in the high half and its ID in that run in the
+// low half. The merged map gives the keys their IDs in that order, which is the order they were first added, so it
+// is the same map (IDs included) as the one filter gives when everything fits in memory.
+// A run file is big endian: int number of keys, then per key: long key, long first seen, int regular, int spam.
+public class SpilledCounts
+{
+    private final LongCountMap counts;
+    private final List<File> runs = new ArrayList<File>();
+
+    // The next key and its counts of one run, while the runs are merged
+    private static class Run
+    {
+        final DataInputStream in;
+        int remaining;
+        long key;
+        long first;
+        int regular;
+        int spam;
+
+        Run(File file) throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            remaining = in.readInt();
+        }
+
+        // Reads the next key, false at the end of the run
+        boolean next() throws IOException
+        {
+            if ( remaining == 0 ){
+                return false;
+            }
+            --remaining;
+            key = in.readLong();
+            first = in.readLong();
+            regular = in.readInt();
+            spam = in.readInt();
+            return true;
+        }
+    }
+
+    // counts is the map that is spilled when it is full
+    public SpilledCounts(LongCountMap counts)
+    {
+        this.counts = counts;
+    }
+
+    // Whether the map is full and has to be spilled before another key is added
+    public boolean full()
+    {
+        return counts.size() == counts.capacity();
+    }
+
+    public boolean spilled()
+    {
+        return !runs.isEmpty();
+    }
+
+    public int runs()
+    {
+        return runs.size();
+    }
+
+    // Writes the keys of the map to a new run sorted by key, and empties the map
+    public void spill() throws IOException
+    {
+        int n = counts.size();
+        long[] keys = new long[n];
+        for (int id = 0; id < n; ++id){
+            keys[id] = counts.key(id);
+        }
+        Arrays.sort(keys);
+
+        File file = File.createTempFile("counts-run" + runs.size() + "-", ".tmp");
+        file.deleteOnExit();
+        runs.add(file);
+        long run = (long) (runs.size() - 1) << 32;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        try {
+            out.writeInt(n);
+            for (long key : keys)
+            {
+                int id = counts.lookup(key);
+                out.writeLong(key);
+                out.writeLong(run | id);
+                out.writeInt(counts.regularCount(id));
+                out.writeInt(counts.spamCount(id));
+            }
+        } finally {
+            out.close();
+        }
+        counts.clear();
+    }
+
+    // Spills what is left in the map, merges every run and deletes them. Returns the keys that occur at least
+    // minimumCount times in all runs together, with their IDs in the order the keys were first seen.
+    public LongCountMap merge(int minimumCount) throws IOException
+    {
+        if ( counts.size() > 0 ){
+            spill();
+        }
+
+        LongCountMap merged = new LongCountMap();	///In key order
+        long[] first = new long[1024];
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, runs.size()), (a, b) -> Long.compare(a.key, b.key));
+        List<Run> open = new ArrayList<Run>();
+        try {
+            for (File file : runs)
+            {
+                Run run = new Run(file);
+                open.add(run);
+                if ( run.next() ){
+                    queue.add(run);
+                }
+            }
+
+            while ( !queue.isEmpty() )
+            {
+                Run run = queue.poll();
+                long key = run.key, firstSeen = run.first;
+                int regular = run.regular, spam = run.spam;
+                if ( run.next() ){
+                    queue.add(run);
+                }
+                while ( !queue.isEmpty() && queue.peek().key == key )
+                {
+                    Run same = queue.poll();
+                    firstSeen = Math.min(firstSeen, same.first);
+                    regular += same.regular;
+                    spam += same.spam;
+                    if ( same.next() ){
+                        queue.add(same);
+                    }
+                }
+
+                if ( regular + spam >= minimumCount )
+                {
+                    int id = merged.add(key);
+                    merged.addCount(id, regular, spam);
+                    if ( id == first.length ){
+                        first = Arrays.copyOf(first, 2 * first.length);
+                    }
+                    first[id] = firstSeen;
+                }
+            }
+        } finally {
+            for (Run run : open){
+                run.in.close();
+            }
+            for (File file : runs){
+                file.delete();
+            }
+            runs.clear();
+        }
+
+        ///Put the keys in the order they were first seen, the rank of a key is its place among the sorted first seens
+        int n = merged.size();
+        long[] sorted = Arrays.copyOf(first, n);
+        Arrays.sort(sorted);
+        int[] order = new int[n];
+        for (int id = 0; id < n; ++id){
+            order[Arrays.binarySearch(sorted, first[id])] = id;
+        }
+        LongCountMap result = new LongCountMap(n);
+        for (int id : order){
+            result.addCount(result.add(merged.key(id)), merged.regularCount(id), merged.spamCount(id));
+        }
+        return result;
+    }
+}
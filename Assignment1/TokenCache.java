@@ -0,0 +1,259 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// A file that keeps the tokens of every message that was read, so a message that did not change since the last run
+// is not read and tokenized again. A message is known by its path, size and modification time; its tokens are kept
+// as word IDs, with -1 for every end of line, and the words themselves once for the whole cache.
+// The file is written big endian (DataOutputStream):
+//   int magic, int version, int shortWordSize, boolean collapseWhitespace
+//   int number of words, every word as UTF
+//   int number of messages, for every message: UTF path, long size, long modification time, int number of IDs, the IDs
+// A cache made with another tokenizer setting is not used. The cache can be shared by threads: only looking up and
+// publishing an entry (and adding its words) is synchronized, a changed message is tokenized and a message is replayed
+// to its sink outside the lock, so threads that read messages at the same time do not wait for each other's work.
+public class TokenCache
+{
+    private static final int magic = 0x42535443;	///"BSTC"
+    private static final int version = 1;
+    private static final int endOfLine = -1;
+
+    // The tokens of one message
+    static class Entry
+    {
+        final long size;
+        final long modified;
+        final int[] ids;
+
+        Entry(long size, long modified, int[] ids)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.ids = ids;
+        }
+    }
+
+    // Records the tokens of a message as IDs in a dictionary of its own, so no lock is needed while tokenizing
+    private static class Recorder implements Tokenizer.TokenSink
+    {
+        final TokenDictionary local = new TokenDictionary(64);
+        int[] ids = new int[1024];
+        int length = 0;
+
+        public void token(char[] chars, int length)
+        {
+            add(local.add(chars, length));
+        }
+
+        public void endOfLine()
+        {
+            add(endOfLine);
+        }
+
+        private void add(int id)
+        {
+            if ( length == ids.length ){
+                ids = Arrays.copyOf(ids, 2 * length);
+            }
+            ids[length++] = id;
+        }
+    }
+
+    private final File file;
+    private final int shortWordSize;
+    private final boolean collapseWhitespace;
+    private final TokenDictionary words = new TokenDictionary();
+    private String[] names = new String[1024];	///The words by ID again, only ever appended to, for the replays
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private int hits = 0;
+    private int misses = 0;
+
+    private TokenCache(File file, int shortWordSize, boolean collapseWhitespace)
+    {
+        this.file = file;
+        this.shortWordSize = shortWordSize;
+        this.collapseWhitespace = collapseWhitespace;
+    }
+
+    // The cache in the file, or an empty one when the file does not exist or was made with another tokenizer setting
+    public static TokenCache load(File file, int shortWordSize, boolean collapseWhitespace) throws IOException
+    {
+        TokenCache cache = new TokenCache(file, shortWordSize, collapseWhitespace);
+        if ( !file.exists() ){
+            return cache;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if ( in.readInt() != magic || in.readInt() != version || in.readInt() != shortWordSize
+                    || in.readBoolean() != collapseWhitespace ){
+                return cache;
+            }
+            int n = in.readInt();
+            for (int id = 0; id < n; ++id){
+                cache.intern(in.readUTF());
+            }
+            int messages = in.readInt();
+            for (int m = 0; m < messages; ++m)
+            {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                int[] ids = new int[in.readInt()];
+                for (int i = 0; i < ids.length; ++i){
+                    ids[i] = in.readInt();
+                }
+                cache.entries.put(path, new Entry(size, modified, ids));
+            }
+            return cache;
+        } catch (EOFException e) {
+            throw new IOException(file + " is truncated");
+        } finally {
+            in.close();
+        }
+    }
+
+    // Passes the tokens of a message to the sink, from the cache when the message did not change and otherwise by
+    // tokenizing it with the reader. The sink can stop the reader like it would when the message is tokenized.
+    public void read(File message, MessageReader reader, Tokenizer.TokenSink sink) throws IOException
+    {
+        int[] ids = ids(message, reader);
+        String[] names = names();	///Holds every word of ids, later words are only added behind them
+        char[] token = new char[64];
+        reader.reset();
+        for (int i = 0; i < ids.length && !reader.stopped(); ++i)
+        {
+            int id = ids[i];
+            if ( id == endOfLine ){
+                sink.endOfLine();
+                continue;
+            }
+            String word = names[id];
+            if ( token.length < word.length() ){
+                token = new char[2 * word.length()];
+            }
+            word.getChars(0, word.length(), token, 0);
+            sink.token(token, word.length());
+        }
+    }
+
+    // The tokens of a message as word IDs, -1 for every end of line, from the cache when the message did not change
+    // and otherwise by tokenizing it with the reader. The array belongs to the cache and must not be changed.
+    public int[] ids(File message, MessageReader reader) throws IOException
+    {
+        String path = message.getAbsolutePath();
+        long size = message.length();
+        long modified = message.lastModified();
+        synchronized (this)
+        {
+            Entry entry = entries.get(path);
+            if ( entry != null && entry.size == size && entry.modified == modified ){
+                ++hits;
+                return entry.ids;
+            }
+        }
+
+        Recorder recorder = new Recorder();
+        reader.read(message, recorder);
+        int[] ids = Arrays.copyOf(recorder.ids, recorder.length);
+        synchronized (this)
+        {
+            ///The words get their IDs in the cache and the entry is published
+            int[] global = new int[recorder.local.size()];
+            for (int id = 0; id < global.length; ++id){
+                global[id] = intern(recorder.local.word(id));
+            }
+            for (int i = 0; i < ids.length; ++i){
+                if ( ids[i] != endOfLine ){
+                    ids[i] = global[ids[i]];
+                }
+            }
+            entries.put(path, new Entry(size, modified, ids));
+            ++misses;
+        }
+        return ids;
+    }
+
+    // The ID of a word in the cache, adding it when it is new
+    private synchronized int intern(String word)
+    {
+        int known = words.size();
+        int id = words.add(word);
+        if ( id < known ){
+            return id;
+        }
+        if ( id == names.length ){
+            names = Arrays.copyOf(names, 2 * id);
+        }
+        names[id] = word;
+        return id;
+    }
+
+    private synchronized String[] names()
+    {
+        return names;
+    }
+
+    // Number of words the IDs refer to, it only grows
+    public synchronized int words()
+    {
+        return words.size();
+    }
+
+    public synchronized String word(int id)
+    {
+        return words.word(id);
+    }
+
+    // Writes the cache back to the file, without the messages that no longer exist. It is written to a temporary
+    // file first, so an interrupted save does not leave a broken cache behind.
+    public synchronized void save() throws IOException
+    {
+        for (Iterator<String> i = entries.keySet().iterator(); i.hasNext(); )
+        {
+            if ( !new File(i.next()).exists() ){
+                i.remove();
+            }
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 64 * 1024));
+        try {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(shortWordSize);
+            out.writeBoolean(collapseWhitespace);
+            out.writeInt(words.size());
+            for (int id = 0; id < words.size(); ++id){
+                out.writeUTF(words.word(id));
+            }
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet())
+            {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeInt(entry.ids.length);
+                for (int id : entry.ids){
+                    out.writeInt(id);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if ( !temporary.renameTo(file) ){
+            file.delete();
+            if ( !temporary.renameTo(file) ){
+                throw new IOException("could not replace " + file);
+            }
+        }
+    }
+
+    // How many messages came from the cache and how many had to be tokenized
+    public synchronized String report()
+    {
+        return "Token cache: " + hits + " messages from the cache, " + misses + " tokenized";
+    }
+}
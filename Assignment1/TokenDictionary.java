@@ -0,0 +1,237 @@
+import java.util.Arrays;
+
+// A vocabulary that gives every word a dense int ID (0, 1, 2, ...) in the order the words were added.
+// The regular and spam count of a word are kept in int arrays indexed by that ID, so a word costs one
+// String and a few array slots instead of a hash table entry plus a counter object.
+public class TokenDictionary
+{
+    private static final int initialCapacity = 1024;
+
+    // The words and their counts, indexed by ID
+    private String[] words;
+    private int[] hashes;
+    private int[] counter_regular;
+    private int[] counter_spam;
+    private int size = 0;
+
+    // Open addressing table (linear probing) holding ID + 1 for every used slot, 0 is an empty slot
+    private int[] table;
+    private int mask;
+
+    public TokenDictionary()
+    {
+        this(initialCapacity);
+    }
+
+    public TokenDictionary(int expectedWords)
+    {
+        int capacity = initialCapacity;
+        while ( capacity < expectedWords ){
+            capacity <<= 1;
+        }
+        words = new String[capacity];
+        hashes = new int[capacity];
+        counter_regular = new int[capacity];
+        counter_spam = new int[capacity];
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+    }
+
+    // Number of words in the dictionary, every ID is smaller than this
+    public int size()
+    {
+        return size;
+    }
+
+    // Estimated memory of the dictionary in bytes: the arrays, plus a String of about 40 bytes and its chars per word
+    public long bytes()
+    {
+        long bytes = 4L * words.length + 4L * hashes.length + 4L * counter_regular.length + 4L * counter_spam.length
+            + 4L * table.length;
+        for (int id = 0; id < size; ++id){
+            bytes += 40 + words[id].length();
+        }
+        return bytes;
+    }
+
+    public String word(int id)
+    {
+        return words[id];
+    }
+
+    public int regularCount(int id)
+    {
+        return counter_regular[id];
+    }
+
+    public int spamCount(int id)
+    {
+        return counter_spam[id];
+    }
+
+    // Add to the counters of a word
+    public void addCount(int id, int regular, int spam)
+    {
+        counter_regular[id] += regular;
+        counter_spam[id] += spam;
+    }
+
+    // The ID of a word, or -1 if the word is not in the dictionary
+    public int lookup(String word)
+    {
+        int hash = word.hashCode();
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask)
+        {
+            int id = table[slot] - 1;
+            if ( id < 0 ){
+                return -1;
+            }
+            if ( hashes[id] == hash && words[id].equals(word) ){
+                return id;
+            }
+        }
+    }
+
+    // The ID of the word in the first length chars, or -1 if the word is not in the dictionary
+    public int lookup(char[] chars, int length)
+    {
+        int hash = hash(chars, length);
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask)
+        {
+            int id = table[slot] - 1;
+            if ( id < 0 ){
+                return -1;
+            }
+            if ( hashes[id] == hash && matches(words[id], chars, length) ){
+                return id;
+            }
+        }
+    }
+
+    // The ID of a word, the word is added with zero counts when it is not in the dictionary yet
+    public int add(String word)
+    {
+        int hash = word.hashCode();
+        int slot = spread(hash) & mask;
+        for (; ; slot = (slot + 1) & mask)
+        {
+            int id = table[slot] - 1;
+            if ( id < 0 ){
+                break;
+            }
+            if ( hashes[id] == hash && words[id].equals(word) ){
+                return id;
+            }
+        }
+        return insert(word, hash, slot);
+    }
+
+    // The ID of the word in the first length chars, only a new word allocates its String
+    public int add(char[] chars, int length)
+    {
+        int hash = hash(chars, length);
+        int slot = spread(hash) & mask;
+        for (; ; slot = (slot + 1) & mask)
+        {
+            int id = table[slot] - 1;
+            if ( id < 0 ){
+                break;
+            }
+            if ( hashes[id] == hash && matches(words[id], chars, length) ){
+                return id;
+            }
+        }
+        return insert(new String(chars, 0, length), hash, slot);
+    }
+
+    // Adds all counts of another dictionary to this one
+    public void merge(TokenDictionary other)
+    {
+        for (int i = 0; i < other.size; ++i)
+        {
+            addCount(add(other.words[i]), other.counter_regular[i], other.counter_spam[i]);
+        }
+    }
+
+    // A new dictionary with only the words that occur at least minimumCount times in total
+    public TokenDictionary filter(int minimumCount)
+    {
+        TokenDictionary filtered = new TokenDictionary(size);
+        for (int i = 0; i < size; ++i)
+        {
+            if ( counter_regular[i] + counter_spam[i] >= minimumCount ){
+                filtered.addCount(filtered.add(words[i]), counter_regular[i], counter_spam[i]);
+            }
+        }
+        return filtered;
+    }
+
+    private int insert(String word, int hash, int slot)
+    {
+        int id = size++;
+        if ( id == words.length ){
+            grow();
+            slot = spread(hash) & mask;
+            while ( table[slot] != 0 ){
+                slot = (slot + 1) & mask;
+            }
+        }
+        words[id] = word;
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        return id;
+    }
+
+    // Doubles the arrays and rebuilds the table, the table is kept at most half full
+    private void grow()
+    {
+        int capacity = words.length * 2;
+        words = Arrays.copyOf(words, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        counter_regular = Arrays.copyOf(counter_regular, capacity);
+        counter_spam = Arrays.copyOf(counter_spam, capacity);
+
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+        for (int id = 0; id < size - 1; ++id)
+        {
+            int slot = spread(hashes[id]) & mask;
+            while ( table[slot] != 0 ){
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    // The same value String.hashCode gives for these chars
+    private static int hash(char[] chars, int length)
+    {
+        int hash = 0;
+        for (int i = 0; i < length; ++i)
+        {
+            hash = 31 * hash + chars[i];
+        }
+        return hash;
+    }
+
+    private static boolean matches(String word, char[] chars, int length)
+    {
+        if ( word.length() != length ){
+            return false;
+        }
+        for (int i = 0; i < length; ++i)
+        {
+            if ( word.charAt(i) != chars[i] ){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // String hash codes of similar words differ mostly in the low bits, mix in the high bits as well
+    private static int spread(int hash)
+    {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,193 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Splits text into words in a single pass over the characters, without regular expressions or intermediate Strings.
+// The words are exactly the ones the old cleanLine + StringTokenizer combination produced:
+//  - every character that is not a letter (a-z, A-Z) or whitespace is dropped, so "don't" becomes "dont"
+//  - words of at most shortWordSize letters are dropped
+//  - the remaining words are lowercased
+// The tokens are written into a buffer that is reused for every token, so a Tokenizer (and its sink) must not be
+// shared between threads.
+public class Tokenizer
+{
+    // Receives the tokens, chars holds the token in its first length positions and is overwritten after the call
+    public interface TokenSink
+    {
+        void token(char[] chars, int length);
+
+        void endOfLine();
+    }
+
+    private static final char verticalTab = '\u000B';
+
+    private final int shortWordSize;
+    private final boolean collapseWhitespace;
+
+    // The word that is being read, the whitespace in front of it and the token that is being built
+    private char[] word = new char[64];
+    private int wordLength = 0;
+    private char[] whitespace = new char[64];
+    private int whitespaceLength = 0;
+    private char[] token = new char[64];
+    private int tokenLength = 0;
+
+    private boolean lineHasWords = false;
+    private boolean previousWordShort = false;
+    private boolean stopped = false;
+
+    // Words of at most shortWordSize letters are dropped. collapseWhitespace has to be set when the cleanLine
+    // regex also matched empty words ({0,n} instead of {1,n}), which turned every run of two or more whitespace
+    // characters into one space.
+    public Tokenizer(int shortWordSize, boolean collapseWhitespace)
+    {
+        this.shortWordSize = shortWordSize;
+        this.collapseWhitespace = collapseWhitespace;
+    }
+
+    // Forgets a stopped text and whatever was left of it, the next text starts on a new line
+    public void reset()
+    {
+        wordLength = 0;
+        whitespaceLength = 0;
+        tokenLength = 0;
+        lineHasWords = false;
+        previousWordShort = false;
+        stopped = false;
+    }
+
+    // Called by a sink that has seen enough of the text: the rest of it is skipped, without ending the line
+    public void stop()
+    {
+        stopped = true;
+    }
+
+    public boolean stopped()
+    {
+        return stopped;
+    }
+
+    // Tokenizes one line (without the line break) and ends it
+    public void tokenizeLine(CharSequence line, TokenSink sink)
+    {
+        for (int i = 0; i < line.length() && !stopped; ++i)
+        {
+            accept(line.charAt(i), sink);
+        }
+        if ( !stopped ){
+            endLine(sink);
+        }
+    }
+
+    // Tokenizes the remaining bytes of a buffer as ASCII text. Lines end at \n, \r or \r\n like they do for
+    // BufferedReader.readLine, bytes above 127 are dropped like any other character that is not a letter or whitespace.
+    public void tokenize(ByteBuffer bytes, TokenSink sink)
+    {
+        boolean lineOpen = false;
+        boolean afterReturn = false;
+        for (int i = bytes.position(); i < bytes.limit() && !stopped; ++i)
+        {
+            byte b = bytes.get(i);
+            if ( b == '\n' ){
+                if ( !afterReturn ){
+                    endLine(sink);
+                }
+                afterReturn = false;
+                lineOpen = false;
+            } else if ( b == '\r' ){
+                endLine(sink);
+                afterReturn = true;
+                lineOpen = false;
+            } else {
+                afterReturn = false;
+                lineOpen = true;
+                accept((char) (b & 0xFF), sink);
+            }
+        }
+        bytes.position(bytes.limit());
+        if ( lineOpen && !stopped ){
+            endLine(sink);
+        }
+    }
+
+    private void accept(char c, TokenSink sink)
+    {
+        if ( (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ){
+            if ( wordLength == word.length ){
+                word = Arrays.copyOf(word, wordLength * 2);
+            }
+            word[wordLength++] = (char) (c | 0x20);
+        } else if ( c == ' ' || c == '\t' || c == '\f' || c == verticalTab ){
+            if ( wordLength > 0 ){
+                endWord(sink);
+            }
+            if ( whitespaceLength == whitespace.length ){
+                whitespace = Arrays.copyOf(whitespace, whitespaceLength * 2);
+            }
+            whitespace[whitespaceLength++] = c;
+        }
+        // any other character is dropped and does not split the word
+    }
+
+    private void endWord(TokenSink sink)
+    {
+        boolean shortWord = wordLength <= shortWordSize;
+        endWhitespace(shortWord, false, sink);
+        if ( !shortWord ){
+            ensureTokenCapacity(tokenLength + wordLength);
+            System.arraycopy(word, 0, token, tokenLength, wordLength);
+            tokenLength += wordLength;
+        }
+        lineHasWords = true;
+        previousWordShort = shortWord;
+        wordLength = 0;
+    }
+
+    private void endLine(TokenSink sink)
+    {
+        if ( wordLength > 0 ){
+            endWord(sink);
+        }
+        endWhitespace(false, true, sink);
+        flush(sink);
+        lineHasWords = false;
+        previousWordShort = false;
+        sink.endOfLine();
+    }
+
+    // cleanLine padded the line with a space on both sides and replaced every whitespace run next to a short word
+    // (and with collapseWhitespace every run of two or more characters) by a single space. The other runs were kept,
+    // and as StringTokenizer does not split on vertical tabs, the vertical tabs in those runs ended up in the tokens.
+    private void endWhitespace(boolean beforeShortWord, boolean lastRun, TokenSink sink)
+    {
+        int length = whitespaceLength + (lineHasWords ? 0 : 1) + (lastRun ? 1 : 0);
+        if ( previousWordShort || beforeShortWord || (collapseWhitespace && length >= 2) ){
+            flush(sink);
+        } else {
+            for (int i = 0; i < whitespaceLength; ++i)
+            {
+                if ( whitespace[i] == verticalTab ){
+                    ensureTokenCapacity(tokenLength + 1);
+                    token[tokenLength++] = verticalTab;
+                } else {
+                    flush(sink);
+                }
+            }
+        }
+        whitespaceLength = 0;
+    }
+
+    private void flush(TokenSink sink)
+    {
+        if ( tokenLength > 0 ){
+            sink.token(token, tokenLength);
+            tokenLength = 0;
+        }
+    }
+
+    private void ensureTokenCapacity(int length)
+    {
+        if ( length > token.length ){
+            token = Arrays.copyOf(token, Math.max(length, token.length * 2));
+        }
+    }
+}
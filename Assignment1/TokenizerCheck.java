@@ -0,0 +1,159 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Checks that the Tokenizer gives exactly the words of the cleanLine + StringTokenizer code it replaced, on random
+// lines full of the cases that are easy to get wrong: short words next to each other, runs of whitespace, vertical
+// tabs and form feeds (whitespace to the regex, but not to StringTokenizer), punctuation inside words, digits and
+// characters above 127. Both settings are checked, Bayespam's (words of 1 to 3 letters dropped) and BigramBayespam's
+// ({0,3} in the regex, which also collapses whitespace), one line at a time and as whole texts with \n, \r\n and \r
+// line breaks read from bytes.
+//
+// Usage: java TokenizerCheck [-lines N] [-seed N]
+// Prints the first mismatches and a summary, the exit code is 1 when there was a mismatch.
+public class TokenizerCheck
+{
+    private static final String alphabet = "abcdeABCDE      \t\t\u000B\f'-.,!09\u00E9\u00A0";
+    private static final String[] lineBreaks = { "\n", "\r\n", "\r" };
+    private static final int shortWordSize = 3;
+    private static final int maxReported = 10;
+
+    private static int mismatches = 0;
+
+    // Collects the tokens per line, lines without tokens are left out
+    static class Collector implements Tokenizer.TokenSink
+    {
+        final List<List<String>> lines = new ArrayList<List<String>>();
+        List<String> line = new ArrayList<String>();
+
+        public void token(char[] chars, int length)
+        {
+            line.add(new String(chars, 0, length));
+        }
+
+        public void endOfLine()
+        {
+            if ( !line.isEmpty() ){
+                lines.add(line);
+                line = new ArrayList<String>();
+            }
+        }
+    }
+
+    // The cleanLine of Bayespam (minimum 1) and BigramBayespam (minimum 0) as they were
+    private static String cleanLine(String line, int minimum)
+    {
+        line = " " + line.replaceAll("[^a-zA-Z\\s]", "") + " ";
+        line = line.replaceAll("(\\s+([a-zA-Z]{" + minimum + "," + shortWordSize + "}\\s+)+)+", " ");
+        return line.toLowerCase();
+    }
+
+    private static List<String> oldTokens(String line, int minimum)
+    {
+        List<String> tokens = new ArrayList<String>();
+        StringTokenizer st = new StringTokenizer(cleanLine(line, minimum));
+        while ( st.hasMoreTokens() ){
+            tokens.add(st.nextToken());
+        }
+        return tokens;
+    }
+
+    // The lines of a text as BufferedReader.readLine splits them, tokenized the old way
+    private static List<List<String>> oldText(String text, int minimum) throws IOException
+    {
+        List<List<String>> lines = new ArrayList<List<String>>();
+        BufferedReader in = new BufferedReader(new StringReader(text));
+        for (String line; (line = in.readLine()) != null; )
+        {
+            List<String> tokens = oldTokens(line, minimum);
+            if ( !tokens.isEmpty() ){
+                lines.add(tokens);
+            }
+        }
+        return lines;
+    }
+
+    private static String randomLine(Random random)
+    {
+        int length = random.nextInt(60);
+        StringBuilder line = new StringBuilder(length);
+        for (int i = 0; i < length; ++i){
+            line.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return line.toString();
+    }
+
+    private static void compare(String what, String input, Object expected, Object actual)
+    {
+        if ( expected.equals(actual) ){
+            return;
+        }
+        if ( ++mismatches <= maxReported ){
+            System.out.println("- Mismatch (" + what + ") for " + escape(input) + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static String escape(String text)
+    {
+        StringBuilder escaped = new StringBuilder("\"");
+        for (char c : text.toCharArray()){
+            escaped.append(c >= ' ' && c < 127 ? String.valueOf(c) : String.format(Locale.ROOT, "\\u%04X", (int) c));
+        }
+        return escaped.append('"').toString();
+    }
+
+    public static void main(String[] args)
+    throws IOException
+    {
+        int lines = 100000;
+        long seed = 1;
+        for (int i = 0; i < args.length; ++i)
+        {
+            if ( args[i].equals("-lines") && i + 1 < args.length ){
+                lines = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-seed") && i + 1 < args.length ){
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.out.println( "- Error: unknown option " + args[i] + "\n" );
+                Runtime.getRuntime().exit(0);
+            }
+        }
+
+        Random random = new Random(seed);
+        for (boolean collapse : new boolean[] { false, true })
+        {
+            int minimum = collapse ? 0 : 1;
+            String mode = collapse ? "bigram" : "unigram";
+            Tokenizer tokenizer = new Tokenizer(shortWordSize, collapse);
+            for (int n = 0; n < lines; ++n)
+            {
+                ///One line at a time
+                String line = randomLine(random);
+                Collector collector = new Collector();
+                tokenizer.reset();
+                tokenizer.tokenizeLine(line, collector);
+                List<String> actual = collector.lines.isEmpty() ? new ArrayList<String>() : collector.lines.get(0);
+                compare(mode + " line", line, oldTokens(line, minimum), actual);
+
+                ///A text of a few lines, from its bytes (the characters above 127 are single bytes in ISO-8859-1)
+                StringBuilder text = new StringBuilder(line);
+                for (int l = random.nextInt(4); l > 0; --l){
+                    text.append(lineBreaks[random.nextInt(lineBreaks.length)]).append(randomLine(random));
+                }
+                if ( random.nextBoolean() ){
+                    text.append(lineBreaks[random.nextInt(lineBreaks.length)]);
+                }
+                collector = new Collector();
+                tokenizer.reset();
+                tokenizer.tokenize(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.ISO_8859_1)), collector);
+                compare(mode + " text", text.toString(), oldText(text.toString(), minimum), collector.lines);
+            }
+        }
+
+        System.out.println("Checked " + lines + " lines and texts in both modes: " + mismatches + " mismatches");
+        if ( mismatches > 0 ){
+            Runtime.getRuntime().exit(1);
+        }
+    }
+}
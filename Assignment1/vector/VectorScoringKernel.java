@@ -0,0 +1,43 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+// ScoringKernel.sum with the Vector API: per step as many tokens as a double vector of the preferred shape has lanes
+// (in an int vector of half that size).
+// The slots of the tokens are gathered into an int vector (slots[token + 1]), doubled, and then used as the index
+// map of two double gathers, the regular CCLs at 2 * slot and the spam CCLs one further. Both are added lane-wise to
+// their own sums, which are only reduced at the end; the tokens that do not fill a vector use the scalar loop.
+// Loaded by ScoringKernel when it can be and used after ScoringKernel.vectorize(true), see there for how to build it.
+public class VectorScoringKernel implements ScoringKernel.Sum
+{
+    private static final VectorSpecies<Double> doubles = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> ints = VectorSpecies.of(int.class, VectorShape.forBitSize(32 * doubles.length()));
+
+    // The index map of the double gathers, one per thread so sum does not allocate it for every message
+    private static final ThreadLocal<int[]> indexes = ThreadLocal.withInitial(() -> new int[doubles.length()]);
+
+    public int sum(int[] tokens, int length, int[] slots, double[] ccl, double[] posteriors)
+    {
+        int lanes = doubles.length();
+        int[] index = indexes.get();
+        DoubleVector regular = DoubleVector.zero(doubles);
+        DoubleVector spam = DoubleVector.zero(doubles);
+        int lines = 0;
+        int i = 0;
+        for (; i + lanes <= length; i += lanes)
+        {
+            IntVector ids = IntVector.fromArray(ints, tokens, i);
+            lines += ids.compare(VectorOperators.LT, 0).trueCount();
+            IntVector.fromArray(ints, slots, 1, tokens, i).lanewise(VectorOperators.LSHL, 1).intoArray(index, 0);
+            regular = regular.add(DoubleVector.fromArray(doubles, ccl, 0, index, 0));
+            spam = spam.add(DoubleVector.fromArray(doubles, ccl, 1, index, 0));
+        }
+
+        int words = i - lines + ScoringKernel.scalarSum(tokens, i, length, slots, ccl, posteriors);
+        posteriors[0] += regular.reduceLanes(VectorOperators.ADD);
+        posteriors[1] += spam.reduceLanes(VectorOperators.ADD);
+        return words;
+    }
+}